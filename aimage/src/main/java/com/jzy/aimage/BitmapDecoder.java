@@ -0,0 +1,190 @@
+package com.jzy.aimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Decodes cached images at the size they are displayed at. The bounds are
+ * read first, the image is then subsampled by the largest power of two that
+ * keeps it at least as large as the target, and finally scaled down to
+ * exactly cover the target while keeping its aspect ratio. Images are never
+ * scaled up.
+ * <p/>
+ * <p>Decodes draw into a bitmap from the {@link BitmapPool} when one fits.
+ * Since KitKat the final scaling is done by the decoder itself, through the
+ * density options, so a subsampled and scaled image costs one allocation at
+ * most; older versions decode the subsampled image and scale a copy of it.
+ */
+final class BitmapDecoder {
+
+    private BitmapDecoder() {
+    }
+
+    /**
+     * Decodes the image that starts at the current position of {@code in} so
+     * that it covers {@code reqWidth} x {@code reqHeight}. The image is read
+     * through the file descriptor of {@code in}, so it must extend to the end
+     * of the file; a {@link LruDiskCache.Snapshot#isPacked packed} value must
+     * be decoded from its bytes instead. A size of 0 or less
+     * doesn't constrain that dimension. Returns null if the data isn't an
+     * image or the decode was cancelled through
+     * {@link BitmapFactory.Options#requestCancelDecode} on {@code options},
+     * which must be fresh. The result is mutable, so it can be returned to
+     * {@code pool} once it is no longer displayed.
+     */
+    static Bitmap decode(FileInputStream in, int reqWidth, int reqHeight, BitmapPool pool,
+                         BitmapFactory.Options options) throws IOException {
+        return decode(new FileSource(in), reqWidth, reqHeight, pool, options);
+    }
+
+    /**
+     * Like {@link #decode(FileInputStream, int, int, BitmapPool, BitmapFactory.Options)}
+     * for an image held in memory.
+     */
+    static Bitmap decode(byte[] data, int reqWidth, int reqHeight, BitmapPool pool,
+                         BitmapFactory.Options options) throws IOException {
+        return decode(new ByteArraySource(data), reqWidth, reqHeight, pool, options);
+    }
+
+    private static Bitmap decode(Source source, int reqWidth, int reqHeight, BitmapPool pool,
+                                 BitmapFactory.Options options) throws IOException {
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        int sampledWidth = (options.outWidth + sampleSize - 1) / sampleSize;
+        int sampledHeight = (options.outHeight + sampleSize - 1) / sampleSize;
+        float scale = coverScale(sampledWidth, sampledHeight, reqWidth, reqHeight);
+        int width = Math.max(1, (int) (sampledWidth * scale + 0.5f));
+        int height = Math.max(1, (int) (sampledHeight * scale + 0.5f));
+        boolean scaleInDecode = BitmapPool.canReuseBySize() && (width != sampledWidth || height != sampledHeight);
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        if (scaleInDecode) {
+            options.inScaled = true;
+            options.inDensity = sampledWidth;
+            options.inTargetDensity = width;
+            options.inBitmap = pool.get(width, height, options.inPreferredConfig);
+        } else if (BitmapPool.canReuseBySize() || (sampleSize == 1 && isJpegOrPng(options.outMimeType))) {
+            // Before KitKat only unsampled JPEGs and PNGs of the same size can be reused.
+            options.inBitmap = pool.get(sampledWidth, sampledHeight, options.inPreferredConfig);
+        }
+        Bitmap bitmap = decode(source, options, pool);
+        if (bitmap == null) {
+            return null;
+        }
+        if (scaleInDecode) {
+            // The density now describes the scaling, not a screen; keep views from scaling again.
+            bitmap.setDensity(Bitmap.DENSITY_NONE);
+            return bitmap;
+        }
+        if (width == bitmap.getWidth() && height == bitmap.getHeight()) {
+            return bitmap;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        if (scaled != bitmap && !pool.put(bitmap)) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    private static Bitmap decode(Source source, BitmapFactory.Options options, BitmapPool pool)
+            throws IOException {
+        Bitmap reused = options.inBitmap;
+        if (reused == null) {
+            return source.decode(options);
+        }
+        try {
+            return source.decode(options);
+        } catch (IllegalArgumentException e) {
+            // The decoder refused the pooled bitmap; give it back and allocate a new one.
+            if (!pool.put(reused)) {
+                reused.recycle();
+            }
+            options.inBitmap = null;
+            return source.decode(options);
+        }
+    }
+
+    /**
+     * Encoded image data that can be decoded more than once.
+     */
+    private interface Source {
+        Bitmap decode(BitmapFactory.Options options) throws IOException;
+    }
+
+    private static final class FileSource implements Source {
+        private final FileInputStream in;
+        private final long start;
+
+        FileSource(FileInputStream in) throws IOException {
+            this.in = in;
+            this.start = in.getChannel().position();
+        }
+
+        @Override
+        public Bitmap decode(BitmapFactory.Options options) throws IOException {
+            in.getChannel().position(start);
+            return BitmapFactory.decodeFileDescriptor(in.getFD(), null, options);
+        }
+    }
+
+    private static final class ByteArraySource implements Source {
+        private final byte[] data;
+
+        ByteArraySource(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public Bitmap decode(BitmapFactory.Options options) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    private static boolean isJpegOrPng(String mimeType) {
+        return "image/jpeg".equals(mimeType) || "image/png".equals(mimeType);
+    }
+
+    /**
+     * Returns the largest power of two by which {@code width} x {@code height}
+     * can be divided while still covering the requested size.
+     */
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        while (covers(width / (sampleSize * 2), height / (sampleSize * 2), reqWidth, reqHeight)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static boolean covers(int width, int height, int reqWidth, int reqHeight) {
+        if (width <= 0 || height <= 0 || (reqWidth <= 0 && reqHeight <= 0)) {
+            return false;
+        }
+        return (reqWidth <= 0 || width >= reqWidth) && (reqHeight <= 0 || height >= reqHeight);
+    }
+
+    /**
+     * Returns the factor by which {@code width} x {@code height} has to be
+     * scaled to just cover the requested size, at most 1.
+     */
+    static float coverScale(int width, int height, int reqWidth, int reqHeight) {
+        float scale = 0;
+        if (reqWidth > 0) {
+            scale = (float) reqWidth / width;
+        }
+        if (reqHeight > 0) {
+            scale = Math.max(scale, (float) reqHeight / height);
+        }
+        return scale <= 0 || scale >= 1 ? 1 : scale;
+    }
+}
@@ -6,29 +6,24 @@ import android.graphics.BitmapFactory;
 import android.os.Environment;
 import android.os.Handler;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.util.LruCache;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
+import okhttp3.Call;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 
 /**
  * Created by JiangZhuyang on 2017/4/1.
@@ -40,18 +35,74 @@ public class BitmapHelper {
 
     public static final int MAX_SIZE = 20 * 1024 * 1024;
 
+    /**
+     * 硬盘缓存的分片数，每个分片有独立的锁，多个加载线程可以同时读写不同分片。
+     */
+    public static final int DISK_CACHE_SHARDS = 4;
+
+    /**
+     * 硬盘缓存的版本号，文件命名方式改变时需要修改，旧版本的缓存会在打开时被清空。
+     * 216：url只做一次Murmur3哈希，之前是MD5之后再MD5。
+     * 217：每个条目增加一个保存HTTP缓存头的值。
+     */
+    private static final int DISK_CACHE_VERSION = 217;
+
+    /**
+     * 过期的图片在硬盘缓存中保留的时间，期间再次加载时带上ETag/Last-Modified发送条件请求，
+     * 服务器返回304时只刷新过期时间，不重新下载。
+     */
+    private static final long STALE_RETENTION_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
     private LruCache<String, Bitmap> mMemoryCache;
 
-    private static ExecutorService mThreadPool;
-    private static Map<String, Future<?>> mTaskTags = new LinkedHashMap<String, Future<?>>();
+    /**
+     * 从内存缓存中淘汰的图片，解码时通过inBitmap复用它们的内存。
+     */
+    private BitmapPool mBitmapPool;
+
+    /**
+     * 内存缓存的第二级，弱引用被淘汰时仍在使用的图片，它们还没有被回收时不需要重新解码。
+     */
+    private final ReferenceBitmapCache mReferenceCache = new ReferenceBitmapCache();
+
+    /**
+     * 内存缓存和硬盘缓存之间的压缩数据缓存，内存缓存未命中时直接从这里解码，不读硬盘。为null时不使用。
+     */
+    private volatile EncodedImageCache mEncodedCache;
 
-    private static Map<String, Set<ImageView>> mViewTags = new LinkedHashMap<String, Set<ImageView>>();
-    private static Map<String, Set<ImageLoadListener>> mListenerTags = new LinkedHashMap<String, Set<ImageLoadListener>>();
+    /**
+     * 正在显示的图片、交给过监听器的图片以及还没有分发的图片，它们被内存缓存淘汰后仍可能在使用，
+     * 不能放入mBitmapPool，而是放入mReferenceCache。都由mDisplayedBitmaps加锁。
+     */
+    private final WeakHashMap<ImageView, Bitmap> mDisplayedBitmaps = new WeakHashMap<ImageView, Bitmap>();
+    private final WeakHashMap<Bitmap, Boolean> mExternalBitmaps = new WeakHashMap<Bitmap, Boolean>();
+    private final Set<Bitmap> mPendingBitmaps = new HashSet<Bitmap>();
+
+    /**
+     * 执行加载任务，默认按优先级和后进先出的顺序执行。
+     */
+    private volatile LoadScheduler mScheduler;
+
+    /**
+     * 正在进行的加载任务，每个url最多一个。所有等待同一张图片的ImageView和监听器都挂在同一个任务上，
+     * 加载完成后统一分发。
+     */
+    private final ConcurrentHashMap<String, ImageLoadTask> mTasks = new ConcurrentHashMap<String, ImageLoadTask>();
+
+    /**
+     * 按硬盘缓存key加锁，同一张图片按不同尺寸加载时只下载一次，其余任务等待后直接读缓存。
+     */
+    private final ConcurrentHashMap<CacheKey, Object> mDownloadLocks = new ConcurrentHashMap<CacheKey, Object>();
+
+    /**
+     * 每个ImageView当前绑定的加载任务，一个ImageView只绑定一个任务，只在主线程访问。
+     */
+    private final WeakHashMap<ImageView, ImageLoadTask> mViewTasks = new WeakHashMap<ImageView, ImageLoadTask>();
 
     /**
      * 图片硬盘缓存核心类。
      */
-    private LruDiskCache mDiskLruCache;
+    private ShardedLruDiskCache mDiskLruCache;
 
     private BitmapHelper(Context context) {
         init(context);
@@ -59,7 +110,18 @@ public class BitmapHelper {
 
     private static BitmapHelper instance;
 
-    private OkHttpClient mClient;
+    private volatile ImageDownloader mDownloader;
+    private volatile DownloadListener mDownloadListener;
+
+    /**
+     * 加载各级的命中、耗时和流量统计，一直开启，记录只有几次原子操作。
+     */
+    private final ImageLoadMetrics mMetrics = new ImageLoadMetrics();
+
+    /**
+     * 定时向监听器推送统计的任务，只在主线程访问，为null时没有监听器。
+     */
+    private Runnable mMetricsReporter;
 
     /**
      * BitmapUtils不是单例的 根据需要重载多个获取实例的方法
@@ -78,26 +140,45 @@ public class BitmapHelper {
     private Handler mHandler;
 
     private void init(Context context) {
-        if (mThreadPool == null) {
-            // 最多同时允许的线程数为3个
-            mThreadPool = Executors.newFixedThreadPool(3);
-        }
+        // 最多同时允许的线程数为3个
+        mScheduler = new PriorityLoadScheduler(3, PriorityLoadScheduler.DEFAULT_MAX_QUEUED);
         mContext = context;
         mHandler = new Handler();
-        mClient = new OkHttpClient();
+        mDownloader = new ImageDownloader(new OkHttpClient());
         // 获取应用程序最大可用内存
         int maxMemory = (int) Runtime.getRuntime().maxMemory();
         int cacheSize = maxMemory / 8;
+        // 复用池的大小为程序最大可用内存的1/16
+        mBitmapPool = new BitmapPool(maxMemory / 16);
+        // 压缩数据缓存的大小为程序最大可用内存的1/32
+        mEncodedCache = new EncodedImageCache(maxMemory / 32);
         // 设置图片缓存大小为程序最大可用内存的1/8
         mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
             @Override
             protected int sizeOf(String key, Bitmap bitmap) {
                 return bitmap.getByteCount();
             }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (evicted) {
+                    demote(key, oldValue);
+                }
+            }
         };
         createLruCache();
     }
 
+    /**
+     * 返回硬盘缓存，如果还没有创建或者已经关闭则重新创建。
+     */
+    private synchronized ShardedLruDiskCache getDiskCache() {
+        if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
+            createLruCache();
+        }
+        return mDiskLruCache;
+    }
+
     private void createLruCache() {
         try {
             // 获取图片缓存路径
@@ -106,8 +187,14 @@ public class BitmapHelper {
                 cacheDir.mkdirs();
             }
             // 创建DiskLruCache实例，初始化缓存数据
-            mDiskLruCache = LruDiskCache
-                    .open(cacheDir, 215, 1, MAX_SIZE);
+            mDiskLruCache = ShardedLruDiskCache
+                    .open(cacheDir, DISK_CACHE_VERSION, ImageDownloader.VALUE_COUNT, MAX_SIZE, DISK_CACHE_SHARDS);
+            // 文件名直接由url哈希得到
+            mDiskLruCache.setFileNameGenerator(new Murmur3FileNameGenerator());
+            // 命中只在内存中去重缓冲，批量写入日志
+            mDiskLruCache.setAccessRecording(LruDiskCache.AccessRecording.BUFFERED);
+            // 过期的图片先保留，用于条件请求
+            mDiskLruCache.setStaleRetention(STALE_RETENTION_MILLIS);
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -118,7 +205,7 @@ public class BitmapHelper {
     /**
      * 将一张图片存储到LruCache中。
      *
-     * @param key    LruCache的键，这里传入图片的URL地址。
+     * @param key    LruCache的键，这里传入图片的URL地址和解码尺寸，见getMemoryKey。
      * @param bitmap LruCache的键，这里传入从网络上下载的Bitmap对象。
      */
     public void addBitmapToMemoryCache(String key, Bitmap bitmap) {
@@ -130,7 +217,7 @@ public class BitmapHelper {
     /**
      * 从LruCache中获取一张图片，如果不存在就返回null。
      *
-     * @param key LruCache的键，这里传入图片的URL地址。
+     * @param key LruCache的键，这里传入图片的URL地址和解码尺寸，见getMemoryKey。
      * @return 对应传入键的Bitmap对象，或者null。
      */
     private Bitmap getBitmapFromMemoryCache(String key) {
@@ -138,93 +225,407 @@ public class BitmapHelper {
     }
 
     /**
-     * 加载Bitmap对象。此方法会在LruCache中检查所有屏幕中可见的ImageView的Bitmap对象，
-     * 如果发现任何一个ImageView的Bitmap对象不在缓存中，就会开启异步线程去下载图片。
+     * 从内存缓存中取出图片，同时记录它将显示在imageView上，或者交给了监听器（imageView为null）。
+     * 取出和记录在同一个锁内完成，这样图片不会在两步之间被淘汰并放入复用池。
      */
-    public void display(ImageView imageView, String imageUrl) {
-        try {
-            if (TextUtils.isEmpty(imageUrl)) {
+    private Bitmap acquireFromMemoryCache(String key, ImageView imageView) {
+        synchronized (mDisplayedBitmaps) {
+            Bitmap bitmap = getFromMemoryTiers(key);
+            if (bitmap != null) {
+                markInUse(bitmap, imageView);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * 先查内存缓存，再查弱引用的第二级，第二级命中时放回内存缓存。调用时需要持有mDisplayedBitmaps的锁。
+     */
+    private Bitmap getFromMemoryTiers(String key) {
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap == null) {
+            bitmap = mReferenceCache.take(key);
+            if (bitmap != null) {
+                mMemoryCache.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    private void markInUse(Bitmap bitmap, ImageView imageView) {
+        if (imageView != null) {
+            mDisplayedBitmaps.put(imageView, bitmap);
+        } else {
+            mExternalBitmaps.put(bitmap, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * 被内存缓存淘汰的图片如果还在显示、交给过监听器或者还没有分发，就放入弱引用的第二级，
+     * 否则放入复用池。
+     */
+    private void demote(String key, Bitmap bitmap) {
+        synchronized (mDisplayedBitmaps) {
+            if (mPendingBitmaps.contains(bitmap)
+                    || mExternalBitmaps.containsKey(bitmap)
+                    || mDisplayedBitmaps.containsValue(bitmap)) {
+                mReferenceCache.put(key, bitmap);
                 return;
             }
-            //先从缓存取
-            Bitmap bitmap = getBitmapFromMemoryCache(imageUrl);
-            checkViewTags(imageUrl, imageView);
-            if (bitmap == null) {
-                // 开线程去网络获取
-                // 使用线程池管理
-                // 判断是否有线程在为 imageView加载数据
-                Future<?> futrue = mTaskTags.get(imageUrl);
-                if (futrue != null && !futrue.isCancelled() && !futrue.isDone()) {
-                    // 线程正在执行
-//                    futrue.cancel(true);
-//                    futrue = null;
-                    return;
-                }
+        }
+        mBitmapPool.put(bitmap);
+    }
 
-                // mThreadPool.execute(new ImageLoadTask(iv, url));
-                futrue = mThreadPool.submit(new ImageLoadTask(imageView, imageUrl));
-                mTaskTags.put(imageUrl, futrue);
-            } else {
-                //从hashset里面取值
-                setBitmap(imageUrl, bitmap);
-                notifyBitMap(imageUrl, bitmap);
+    /**
+     * 设置下载图片使用的OkHttpClient，例如配置超时、拦截器，或者在测试中连接本地的模拟服务器。
+     * 只影响之后开始的下载。
+     */
+    public void setOkHttpClient(OkHttpClient client) {
+        if (client == null) {
+            throw new NullPointerException("client == null");
+        }
+        mDownloader = new ImageDownloader(client);
+    }
+
+    /**
+     * 设置压缩数据缓存的大小（字节），0表示不使用这一级缓存。已经缓存的数据会被丢弃。
+     */
+    public void setEncodedCacheSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        EncodedImageCache old = mEncodedCache;
+        mEncodedCache = maxSize > 0 ? new EncodedImageCache(maxSize) : null;
+        if (old != null) {
+            old.evictAll();
+        }
+    }
+
+    /**
+     * 返回压缩数据缓存，可以查看它的命中统计，没有使用时返回null。
+     */
+    public EncodedImageCache getEncodedCache() {
+        return mEncodedCache;
+    }
+
+    /**
+     * 返回加载统计的快照：内存、压缩数据、硬盘缓存的命中，网络下载的首字节时间和吞吐量，
+     * 任务的排队时间和解码时间等。之后的加载不会改变返回的对象。
+     */
+    public ImageLoadMetrics getMetrics() {
+        return mMetrics.snapshot();
+    }
+
+    /**
+     * 返回硬盘缓存统计的快照，包括写入和淘汰的字节数、日志重建次数和耗时、锁等待时间，
+     * 硬盘缓存不可用时返回null。
+     */
+    public DiskCacheMetrics getDiskCacheMetrics() {
+        // 不重新打开已经关闭的硬盘缓存，推送统计时在主线程调用
+        ShardedLruDiskCache diskCache;
+        synchronized (this) {
+            diskCache = mDiskLruCache;
+        }
+        return diskCache != null ? diskCache.getMetrics() : null;
+    }
+
+    /**
+     * 每隔intervalMillis在主线程把统计快照推送给listener，传null停止推送。只能在主线程调用。
+     */
+    public void setMetricsListener(final MetricsListener listener, final long intervalMillis) {
+        if (mMetricsReporter != null) {
+            mHandler.removeCallbacks(mMetricsReporter);
+            mMetricsReporter = null;
+        }
+        if (listener == null) {
+            return;
+        }
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis <= 0");
+        }
+        mMetricsReporter = new Runnable() {
+            @Override
+            public void run() {
+                listener.onMetrics(getMetrics(), getDiskCacheMetrics());
+                if (mMetricsReporter == this) {
+                    mHandler.postDelayed(this, intervalMillis);
+                }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        };
+        mHandler.postDelayed(mMetricsReporter, intervalMillis);
+    }
+
+    /**
+     * 返回解码复用池，可以查看它的命中统计。
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * 返回弱引用的第二级内存缓存，可以查看它单独的命中统计。
+     */
+    public ReferenceBitmapCache getReferenceCache() {
+        return mReferenceCache;
+    }
+
+    /**
+     * 加载Bitmap对象。内存缓存中有就直接显示，否则交给该url的加载任务，
+     * 没有正在进行的任务时才开启异步线程去下载图片。图片按ImageView的尺寸解码。
+     */
+    public void display(ImageView imageView, String imageUrl) {
+        if (TextUtils.isEmpty(imageUrl) || imageView == null) {
+            return;
         }
+        load(imageUrl, getTargetWidth(imageView), getTargetHeight(imageView), imageView, null,
+                LoadScheduler.Priority.VISIBLE);
     }
 
+    /**
+     * 按指定的尺寸解码并显示图片，解码结果不小于width x height，宽高比不变。
+     */
+    public void display(ImageView imageView, String imageUrl, int width, int height) {
+        if (TextUtils.isEmpty(imageUrl) || imageView == null) {
+            return;
+        }
+        load(imageUrl, width, height, imageView, null, LoadScheduler.Priority.VISIBLE);
+    }
 
+    /**
+     * 获取图片，最大按屏幕尺寸解码。
+     */
     public void getBitMap(String imageUrl, ImageLoadListener listener) {
-        try {
-            if (TextUtils.isEmpty(imageUrl)) {
+        DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+        getBitMap(imageUrl, metrics.widthPixels, metrics.heightPixels, listener);
+    }
+
+    /**
+     * 获取按指定尺寸解码的图片，宽或高传0表示这个方向不限制。以BACKGROUND优先级加载，
+     * 需要马上显示时可以用setPriority提高。
+     */
+    public void getBitMap(String imageUrl, int width, int height, ImageLoadListener listener) {
+        if (TextUtils.isEmpty(imageUrl) || listener == null) {
+            return;
+        }
+        load(imageUrl, width, height, null, listener, LoadScheduler.Priority.BACKGROUND);
+    }
+
+    /**
+     * 修改imageUrl所有尚未开始的加载任务的优先级，比如图片滑出屏幕时降低、即将显示时提高。
+     */
+    public void setPriority(String imageUrl, LoadScheduler.Priority priority) {
+        for (ImageLoadTask task : mTasks.values()) {
+            if (task.mUrl.equals(imageUrl)) {
+                task.setPriority(priority);
+            }
+        }
+    }
+
+    /**
+     * 替换执行加载任务的调度器，只影响之后提交的任务。
+     */
+    public void setLoadScheduler(LoadScheduler scheduler) {
+        if (scheduler == null) {
+            throw new NullPointerException("scheduler == null");
+        }
+        mScheduler = scheduler;
+    }
+
+    /**
+     * 内存缓存和加载任务的key，同一张图片的不同解码尺寸分开缓存。
+     */
+    private static String getMemoryKey(String imageUrl, int width, int height) {
+        return imageUrl + '#' + width + 'x' + height;
+    }
+
+    /**
+     * ImageView的解码宽度：已经布局的取实际宽度，否则依次取LayoutParams、maxWidth，最后取屏幕宽度。
+     */
+    private int getTargetWidth(ImageView imageView) {
+        int width = imageView.getWidth();
+        if (width <= 0) {
+            ViewGroup.LayoutParams params = imageView.getLayoutParams();
+            width = params != null ? params.width : 0;
+        }
+        if (width <= 0) {
+            width = imageView.getMaxWidth();
+        }
+        DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+        if (width <= 0 || width > metrics.widthPixels) {
+            width = metrics.widthPixels;
+        }
+        return width;
+    }
+
+    private int getTargetHeight(ImageView imageView) {
+        int height = imageView.getHeight();
+        if (height <= 0) {
+            ViewGroup.LayoutParams params = imageView.getLayoutParams();
+            height = params != null ? params.height : 0;
+        }
+        if (height <= 0) {
+            height = imageView.getMaxHeight();
+        }
+        DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+        if (height <= 0 || height > metrics.heightPixels) {
+            height = metrics.heightPixels;
+        }
+        return height;
+    }
+
+    /**
+     * 把view或listener挂到这个url和尺寸的加载任务上。同一张图片同一个尺寸同时只会有一个任务在下载和解码，
+     * 任务已经结束但还没有从mTasks中移除时重试，此时图片已经在内存缓存中。
+     * imageView原来绑定的是其他任务时先解除绑定，那个任务没有其他目标时会被取消。
+     */
+    private void load(String imageUrl, int width, int height, ImageView imageView, ImageLoadListener listener,
+                      LoadScheduler.Priority priority) {
+        String memoryKey = getMemoryKey(imageUrl, width, height);
+        if (imageView != null) {
+            ImageLoadTask previous = mViewTasks.get(imageView);
+            if (previous != null) {
+                if (previous.mMemoryKey.equals(memoryKey) && previous.raisePriority(priority)) {
+                    return; // 已经在等待同一张图片
+                }
+                mViewTasks.remove(imageView);
+                previous.removeTarget(imageView);
+            }
+        }
+        while (true) {
+            Bitmap bitmap = acquireFromMemoryCache(memoryKey, imageView);
+            if (bitmap != null) {
+                mMetrics.memoryHits.incrementAndGet();
+                if (imageView != null) {
+                    imageView.setImageBitmap(bitmap);
+                } else {
+                    listener.onLoad(bitmap);
+                }
                 return;
             }
-            //先从缓存取
-            Bitmap bitmap = getBitmapFromMemoryCache(imageUrl);
-            checkListenerTags(imageUrl, listener);
-            if (bitmap == null) {
-                // 开线程去网络获取
-                // 使用线程池管理
-                // 判断是否有线程在为 imageView加载数据
-                Future<?> futrue = mTaskTags.get(imageUrl);
-                if (futrue != null && !futrue.isCancelled() && !futrue.isDone()) {
-                    // 线程正在执行
-//                    futrue.cancel(true);
-//                    futrue = null;
+            ImageLoadTask task = mTasks.get(memoryKey);
+            if (task == null) {
+                ImageLoadTask newTask = new ImageLoadTask(imageUrl, memoryKey, width, height, true, priority);
+                newTask.addTarget(imageView, listener, priority);
+                task = mTasks.putIfAbsent(memoryKey, newTask);
+                if (task == null) {
+                    mMetrics.memoryMisses.incrementAndGet();
+                    bindView(imageView, newTask);
+                    newTask.start();
                     return;
                 }
-
-//                mThreadPool.execute(new ImageLoadTask(iv, url));
-                futrue = mThreadPool.submit(new ImageLoadTask(listener, imageUrl));
-                mTaskTags.put(imageUrl, futrue);
-            } else {
-                setBitmap(imageUrl, bitmap);
-                //从hashset里面取值
-                notifyBitMap(imageUrl, bitmap);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (task.addTarget(imageView, listener, priority)) {
+                mMetrics.memoryMisses.incrementAndGet();
+                bindView(imageView, task);
+                return;
+            }
         }
     }
 
     /**
-     * 取消所有正在下载或等待下载的任务。
+     * 设置下载统计的监听器，每次从网络下载完一张图片后在加载线程中回调，传null取消监听。
      */
-    public void cancelAllTasks() {
-        try {
-            if (mTaskTags != null) {
-                for (Map.Entry<String, Future<?>> entry : mTaskTags.entrySet()) {
-                    Future<?> futrue = entry.getValue();
-                    futrue.cancel(true);
-                    futrue = null;
+    public void setDownloadListener(DownloadListener listener) {
+        mDownloadListener = listener;
+    }
+
+    private void bindView(ImageView imageView, ImageLoadTask task) {
+        if (imageView != null) {
+            mViewTasks.put(imageView, task);
+        }
+    }
+
+    /**
+     * 预加载imageUrls，最大按屏幕尺寸解码，见{@link #prefetch(List, PrefetchLevel, int, int)}。
+     */
+    public PrefetchGroup prefetch(List<String> imageUrls, PrefetchLevel level) {
+        DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+        return prefetch(imageUrls, level, metrics.widthPixels, metrics.heightPixels);
+    }
+
+    /**
+     * 以最低的PREFETCH优先级预加载imageUrls：DISK只下载到硬盘缓存，MEMORY再按width x height解码放入内存缓存。
+     * 已经在对应缓存中的图片直接跳过。之后display同一张图片时会加入正在进行的预加载任务并提高它的优先级。
+     *
+     * @return 可以整体取消的预加载组，取消时只取消没有其他目标的任务。
+     */
+    public PrefetchGroup prefetch(List<String> imageUrls, PrefetchLevel level, int width, int height) {
+        PrefetchGroup group = new PrefetchGroup();
+        boolean decode = level == PrefetchLevel.MEMORY;
+        for (String imageUrl : imageUrls) {
+            if (TextUtils.isEmpty(imageUrl)) {
+                continue;
+            }
+            String taskKey = decode ? getMemoryKey(imageUrl, width, height) : imageUrl + "#disk";
+            while (!isPrefetched(imageUrl, taskKey, decode)) {
+                ImageLoadTask task = mTasks.get(taskKey);
+                if (task == null) {
+                    ImageLoadTask newTask = new ImageLoadTask(imageUrl, taskKey, width, height, decode,
+                            LoadScheduler.Priority.PREFETCH);
+                    newTask.addPrefetch(group);
+                    task = mTasks.putIfAbsent(taskKey, newTask);
+                    if (task == null) {
+                        group.add(newTask);
+                        newTask.start();
+                        break;
+                    }
+                }
+                if (task.addPrefetch(group)) {
+                    group.add(task);
+                    break;
                 }
-                mTaskTags.clear();
-                mViewTags.clear();
-                mListenerTags.clear();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+        return group;
+    }
+
+    private boolean isPrefetched(String imageUrl, String taskKey, boolean decode) {
+        if (decode) {
+            synchronized (mDisplayedBitmaps) {
+                return getFromMemoryTiers(taskKey) != null;
+            }
+        }
+        ShardedLruDiskCache diskCache = getDiskCache();
+        try {
+            return diskCache != null && diskCache.contains(diskCache.newKey(imageUrl));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 打开一张超大图片按块解码，块缓存大小为程序最大可用内存的1/16，见{@link #openTiledImage(String, int, TiledImage.Listener)}。
+     */
+    public TiledImage openTiledImage(String imageUrl, TiledImage.Listener listener) {
+        return openTiledImage(imageUrl, (int) (Runtime.getRuntime().maxMemory() / 16), listener);
+    }
+
+    /**
+     * 打开一张超大图片：先下载到硬盘缓存，再用BitmapRegionDecoder直接从缓存文件只解码可见的块。
+     * 块缓存独立于内存缓存，最多占用tileCacheSize字节。用完后必须调用{@link TiledImage#close()}。
+     */
+    public TiledImage openTiledImage(String imageUrl, int tileCacheSize, TiledImage.Listener listener) {
+        TiledImage image = new TiledImage(imageUrl, mScheduler, mHandler, tileCacheSize, listener);
+        new TiledImageOpener(image).start();
+        return image;
+    }
+
+    /**
+     * 取消imageView正在等待的加载，它不会再收到图片。任务没有其他目标时取消下载和解码。
+     */
+    public void cancel(ImageView imageView) {
+        ImageLoadTask task = mViewTasks.remove(imageView);
+        if (task != null) {
+            task.removeTarget(imageView);
+        }
+    }
+
+    /**
+     * 取消所有正在下载或等待下载的任务，等待中的ImageView和监听器不会再收到回调。
+     */
+    public void cancelAllTasks() {
+        for (ImageLoadTask task : mTasks.values()) {
+            task.cancel();
         }
     }
 
@@ -243,21 +644,6 @@ public class BitmapHelper {
     }
 
 
-    /**
-     * 使用MD5算法对传入的key进行加密并返回。
-     */
-    private String hashKeyForDisk(String key) {
-        String cacheKey;
-        try {
-            final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(key.getBytes());
-            cacheKey = bytesToHexString(mDigest.digest());
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(key.hashCode());
-        }
-        return cacheKey;
-    }
-
     /**
      * 将缓存记录同步到journal文件中。
      */
@@ -271,198 +657,571 @@ public class BitmapHelper {
         }
     }
 
-    private String bytesToHexString(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
+    /**
+     * 下载imageUrl并写入硬盘缓存，返回写入后的快照。按key加锁，同一张图片同时只下载一次，
+     * 其他等待的调用方在锁释放后直接读缓存。owner取消后不再下载，已经下载的内容也不提交。
+     */
+    private LruDiskCache.Snapshot downloadToDiskCache(ShardedLruDiskCache diskCache, CacheKey key,
+                                                      String imageUrl, ImageDownloader.Cancellable owner)
+            throws IOException {
+        while (true) {
+            Object lock = new Object();
+            Object existing = mDownloadLocks.putIfAbsent(key, lock);
+            if (existing != null) {
+                lock = existing;
+            }
+            synchronized (lock) {
+                if (mDownloadLocks.get(key) != lock) {
+                    // 等待期间持有者已经完成并移除了这把锁，之后来的调用方可能已经换上新锁，重新获取
+                    continue;
+                }
+                try {
+                    return downloadLocked(diskCache, key, imageUrl, owner);
+                } finally {
+                    // 提交之后才移除，之后换上新锁的调用方一定能读到结果
+                    mDownloadLocks.remove(key, lock);
+                }
             }
-            sb.append(hex);
         }
-        return sb.toString();
+    }
+
+    /**
+     * 持有key的下载锁时调用。
+     */
+    private LruDiskCache.Snapshot downloadLocked(ShardedLruDiskCache diskCache, CacheKey key,
+                                                 String imageUrl, ImageDownloader.Cancellable owner)
+            throws IOException {
+        // 等待锁期间其他任务可能已经下载好了
+        LruDiskCache.Snapshot snapShot = diskCache.get(key);
+        if (snapShot != null || owner.isCancelled()) {
+            return snapShot;
+        }
+        // 如果没有找到对应的缓存，则准备从网络上请求数据，并写入缓存
+        LruDiskCache.Editor editor = diskCache.edit(key);
+        if (editor != null) {
+            try {
+                // 过期但还保留着的图片用条件请求重新验证，上次中断的下载用Range请求续传
+                ImageDownloader.Download download = mDownloader.newDownload(imageUrl, editor);
+                owner.setCall(download.getCall());
+                DownloadStats stats = download.execute();
+                mMetrics.recordDownload(stats);
+                if (!owner.isCancelled()) {
+                    editor.commit();
+                    EncodedImageCache encodedCache = mEncodedCache;
+                    if (encodedCache != null && !stats.isNotModified()) {
+                        // 图片内容可能变了，丢弃旧的压缩数据
+                        encodedCache.remove(key);
+                    }
+                }
+                DownloadListener downloadListener = mDownloadListener;
+                if (downloadListener != null) {
+                    downloadListener.onDownloaded(stats);
+                }
+            } finally {
+                editor.abortUnlessCommitted();
+            }
+        }
+        // 缓存被写入后，再次查找key对应的缓存
+        return diskCache.get(key);
     }
 
     /*
     * 获取图片的线程
     * 先取本地磁盘，取不到从网络取
+    * 一个任务对应一个url和解码尺寸，结果分发给所有挂在它上面的ImageView和监听器
     * */
-    class ImageLoadTask implements Runnable {
+    class ImageLoadTask implements LoadScheduler.Task, ImageDownloader.Cancellable {
+
+        private final String mUrl;
+        private final String mMemoryKey;
+        private final int mWidth;
+        private final int mHeight;
+        private final List<ImageView> mViews = new ArrayList<ImageView>();
+        private final List<ImageLoadListener> mListeners = new ArrayList<ImageLoadListener>();
+        private final List<PrefetchGroup> mGroups = new ArrayList<PrefetchGroup>();
+
+        /**
+         * 为false时只下载到硬盘缓存，不解码。
+         */
+        private final boolean mDecode;
+
+        /**
+         * 结束后不再接受新的目标，调用方需要重新查找任务。
+         */
+        private boolean mFinished;
+        private volatile boolean mCancelled;
+        private volatile LoadScheduler.Job mJob;
+        private volatile Call mCall;
+        private final BitmapFactory.Options mDecodeOptions = new BitmapFactory.Options();
+
+        /**
+         * 提交给调度器的时间，用于统计排队时间。
+         */
+        private volatile long mSubmitNanos;
 
-        private String mUrl;
-        private ImageView iv;
-        private ImageLoadListener mLister;
+        /**
+         * 所有目标中最高的优先级。
+         */
+        private LoadScheduler.Priority mPriority;
 
-        public ImageLoadTask(ImageView iv, String url) {
+        public ImageLoadTask(String url, String memoryKey, int width, int height, boolean decode,
+                             LoadScheduler.Priority priority) {
             this.mUrl = url;
-            this.iv = iv;
+            this.mMemoryKey = memoryKey;
+            this.mWidth = width;
+            this.mHeight = height;
+            this.mDecode = decode;
+            this.mPriority = priority;
         }
 
-        public ImageLoadTask(ImageLoadListener listener, String url) {
-            this.mUrl = url;
-            this.mLister = listener;
+        /**
+         * 添加一个等待结果的目标，任务已经结束时返回false。目标的优先级更高时提高任务的优先级。
+         */
+        synchronized boolean addTarget(ImageView view, ImageLoadListener listener, LoadScheduler.Priority priority) {
+            if (mFinished) {
+                return false;
+            }
+            raisePriority(priority);
+            if (view != null) {
+                if (!mViews.contains(view)) {
+                    mViews.add(view);
+                }
+            } else if (!mListeners.contains(listener)) {
+                mListeners.add(listener);
+            }
+            return true;
         }
 
-        @Override
-        public void run() {
-            // 查找key对应的缓存
-            LruDiskCache.Snapshot snapShot = null;
+        void start() {
+            LoadScheduler.Priority priority;
+            synchronized (this) {
+                priority = mPriority;
+            }
+            mSubmitNanos = System.nanoTime();
+            LoadScheduler.Job job = mScheduler.submit(this, priority);
+            synchronized (this) {
+                mJob = job;
+                // 提交期间优先级可能被提高了
+                if (mPriority != priority) {
+                    job.setPriority(mPriority);
+                }
+            }
+        }
 
-            FileDescriptor fileDescriptor = null;
-            FileInputStream fileInputStream = null;
+        /**
+         * 把任务的优先级提高到至少priority，任务已经结束时返回false。
+         */
+        synchronized boolean raisePriority(LoadScheduler.Priority priority) {
+            if (mFinished) {
+                return false;
+            }
+            if (priority.ordinal() < mPriority.ordinal()) {
+                setPriority(priority);
+            }
+            return true;
+        }
+
+        /**
+         * 把任务加入预加载组，任务已经结束时返回false。
+         */
+        synchronized boolean addPrefetch(PrefetchGroup group) {
+            if (mFinished) {
+                return false;
+            }
+            if (!mGroups.contains(group)) {
+                mGroups.add(group);
+            }
+            return true;
+        }
+
+        /**
+         * 移除一个ImageView，没有剩下的目标时取消任务。
+         */
+        void removeTarget(ImageView view) {
+            synchronized (this) {
+                if (mFinished || !mViews.remove(view) || hasTargets()) {
+                    return;
+                }
+            }
+            cancel();
+        }
+
+        /**
+         * 预加载组被取消时调用，没有剩下的目标时取消任务。
+         */
+        void removePrefetch(PrefetchGroup group) {
+            synchronized (this) {
+                if (mFinished || !mGroups.remove(group) || hasTargets()) {
+                    return;
+                }
+            }
+            cancel();
+        }
+
+        private boolean hasTargets() {
+            return !mViews.isEmpty() || !mListeners.isEmpty() || !mGroups.isEmpty();
+        }
+
+        synchronized void setPriority(LoadScheduler.Priority priority) {
+            mPriority = priority;
+            LoadScheduler.Job job = mJob;
+            if (job != null) {
+                job.setPriority(priority);
+            }
+        }
+
+        /**
+         * 取消任务：从mTasks中移除，丢弃所有目标，取消网络请求和解码，并中断正在执行的线程。
+         */
+        void cancel() {
+            mCancelled = true;
+            mTasks.remove(mMemoryKey, this);
+            synchronized (this) {
+                mFinished = true;
+                mViews.clear();
+                mListeners.clear();
+                mGroups.clear();
+            }
+            LoadScheduler.Job job = mJob;
+            if (job != null) {
+                job.cancel();
+            }
+            Call call = mCall;
+            if (call != null) {
+                call.cancel();
+            }
+            mDecodeOptions.requestCancelDecode();
+        }
 
+        /**
+         * 调度器队列已满时丢弃了这个任务，按加载失败处理。
+         */
+        @Override
+        public void onDropped() {
+            mMetrics.dropped.incrementAndGet();
+            finish(null, new RejectedExecutionException("dropped by the load scheduler: " + mUrl));
+        }
+
+        @Override
+        public void run() {
+            mMetrics.queueWait.recordSince(mSubmitNanos);
+            Bitmap bitmap = null;
+            Exception error = null;
             try {
-                // 生成图片URL对应的key
-                final String key = hashKeyForDisk(mUrl);
-                if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
-                    createLruCache();
+                bitmap = loadBitmap();
+                if (bitmap != null) {
+                    // 分发之前不能被复用
+                    synchronized (mDisplayedBitmaps) {
+                        mPendingBitmaps.add(bitmap);
+                    }
+                    // 将Bitmap对象添加到内存缓存当中
+                    addBitmapToMemoryCache(mMemoryKey, bitmap);
                 }
-                // 查找key对应的缓存
-                snapShot = mDiskLruCache.get(key);
-                if (snapShot == null) {
-                    // 如果没有找到对应的缓存，则准备从网络上请求数据，并写入缓存
-                    LruDiskCache.Editor editor = mDiskLruCache.edit(key);
-                    if (editor != null) {
-                        OutputStream outputStream = editor.newOutputStream(0);
-                        if (downloadUrlToStream(outputStream)) {
-                            editor.commit();
-                        } else {
-                            editor.abort();
-                        }
+            } catch (Exception e) {
+                mMetrics.failures.incrementAndGet();
+                error = e;
+            }
+            finish(bitmap, error);
+        }
+
+        private Bitmap loadBitmap() throws IOException {
+            ShardedLruDiskCache diskCache = getDiskCache();
+            if (diskCache == null) {
+                throw new IOException("disk cache unavailable");
+            }
+            // 生成图片URL对应的key，只哈希一次
+            final CacheKey key = diskCache.newKey(mUrl);
+            if (!mDecode) {
+                // 只预加载到硬盘
+                if (diskCache.contains(key)) {
+                    mMetrics.diskHits.incrementAndGet();
+                } else if (!mCancelled) {
+                    LruDiskCache.Snapshot snapShot = downloadToDiskCache(diskCache, key, mUrl, this);
+                    if (snapShot != null) {
+                        snapShot.close();
                     }
-                    // 缓存被写入后，再次查找key对应的缓存
-                    snapShot = mDiskLruCache.get(key);
                 }
+                return null;
+            }
+            // 先查压缩数据缓存，命中时不需要读硬盘
+            EncodedImageCache encodedCache = mEncodedCache;
+            byte[] data = encodedCache != null ? encodedCache.get(key) : null;
+            if (data != null) {
+                mMetrics.encodedHits.incrementAndGet();
+                return decode(data, null);
+            }
+            // 查找key对应的缓存
+            LruDiskCache.Snapshot snapShot = diskCache.get(key);
+            try {
                 if (snapShot != null) {
-                    fileInputStream = (FileInputStream) snapShot.getInputStream(0);
-                    fileDescriptor = fileInputStream.getFD();
+                    mMetrics.diskHits.incrementAndGet();
+                } else if (!mCancelled) {
+                    snapShot = downloadToDiskCache(diskCache, key, mUrl, this);
                 }
-                // 将缓存数据解析成Bitmap对象
-                Bitmap bitmap = null;
-                if (fileDescriptor != null) {
-                    bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor);
+                if (snapShot == null || mCancelled) {
+                    return null;
                 }
-                if (bitmap != null) {
-                    // 将Bitmap对象添加到内存缓存当中
-                    addBitmapToMemoryCache(mUrl, bitmap);
-                    mTaskTags.remove(mUrl);
-                    // 图片显示
-                    mHandler.post(new Runnable() {
-
-                        @Override
-                        public void run() {
-                            if (iv != null) {
-                                display(iv, mUrl);
-                            } else {
-                                getBitMap(mUrl, mLister);
-                            }
-                        }
-                    });
+                if (encodedCache != null && encodedCache.accepts(snapShot.getLength(ImageDownloader.BODY_INDEX))) {
+                    // 一次读入内存并放入压缩数据缓存，之后按其他尺寸解码或者重新显示时不再读硬盘
+                    data = snapShot.getBytes(ImageDownloader.BODY_INDEX);
+                    encodedCache.put(key, data, snapShot.getExpiryTimestamp());
+                    return decode(data, null);
+                }
+                if (snapShot.isPacked(ImageDownloader.BODY_INDEX)) {
+                    // 打包在段文件中的小图片不能按文件描述符解码，否则会读到后面其他图片的数据
+                    return decode(snapShot.getBytes(ImageDownloader.BODY_INDEX), null);
+                }
+                // 先读取图片尺寸，按目标尺寸采样解码
+                return decode(null, snapShot.getInputStream(ImageDownloader.BODY_INDEX));
+            } finally {
+                if (snapShot != null) {
+                    snapShot.close();
                 }
-            } catch (Exception e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
             }
         }
 
-        private boolean downloadUrlToStream(OutputStream outputStream) {
-            BufferedOutputStream out = null;
-            BufferedInputStream in = null;
+        /**
+         * 从data解码，data为null时从in解码，并统计解码时间。
+         */
+        private Bitmap decode(byte[] data, FileInputStream in) throws IOException {
+            long start = System.nanoTime();
             try {
-                Request request = new Request.Builder().url(mUrl).build();
-                Response response = mClient.newCall(request).execute();
+                return data != null
+                        ? BitmapDecoder.decode(data, mWidth, mHeight, mBitmapPool, mDecodeOptions)
+                        : BitmapDecoder.decode(in, mWidth, mHeight, mBitmapPool, mDecodeOptions);
+            } finally {
+                mMetrics.decodeTime.recordSince(start);
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
 
-                if (response.isSuccessful()) {
+        @Override
+        public void setCall(Call call) {
+            mCall = call;
+            if (mCancelled) {
+                // cancel()可能在mCall赋值之前执行
+                call.cancel();
+            }
+        }
 
-                    in = new BufferedInputStream(response.body().byteStream(), 8 * 1024);
-                    out = new BufferedOutputStream(outputStream, 8 * 1024);
-                    int b;
-                    while ((b = in.read()) != -1) {
-                        out.write(b);
+        /**
+         * 把任务从mTasks中移除后再关闭目标列表，之后到达的请求会开始新的任务或者直接命中内存缓存。
+         * 结果在主线程分发，期间被取消的任务、已经绑定到其他任务的ImageView不再分发。
+         */
+        private void finish(final Bitmap bitmap, Exception error) {
+            mTasks.remove(mMemoryKey, this);
+            final List<ImageView> views;
+            final List<ImageLoadListener> listeners;
+            synchronized (this) {
+                // 已取消的任务目标列表已经清空
+                mFinished = true;
+                views = new ArrayList<ImageView>(mViews);
+                listeners = new ArrayList<ImageLoadListener>(mListeners);
+                mViews.clear();
+                mListeners.clear();
+                mGroups.clear();
+            }
+            if (views.isEmpty() && listeners.isEmpty()) {
+                if (bitmap != null) {
+                    synchronized (mDisplayedBitmaps) {
+                        mPendingBitmaps.remove(bitmap);
                     }
-                    return true;
                 }
-            } catch (final IOException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    if (out != null) {
-                        out.close();
+                return;
+            }
+            final Exception failure = bitmap != null || error != null
+                    ? error : new IOException("failed to load " + mUrl);
+            mHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    boolean cancelled = mCancelled;
+                    List<ImageView> boundViews = new ArrayList<ImageView>();
+                    for (ImageView view : views) {
+                        if (mViewTasks.get(view) == ImageLoadTask.this) {
+                            mViewTasks.remove(view);
+                            boundViews.add(view);
+                        }
                     }
-                    if (in != null) {
-                        in.close();
+                    if (bitmap == null) {
+                        if (!cancelled) {
+                            for (ImageLoadListener listener : listeners) {
+                                if (listener instanceof ImageLoadErrorListener) {
+                                    ((ImageLoadErrorListener) listener).onError(mUrl, failure);
+                                }
+                            }
+                        }
+                        return;
+                    }
+                    synchronized (mDisplayedBitmaps) {
+                        if (!cancelled) {
+                            for (ImageView view : boundViews) {
+                                markInUse(bitmap, view);
+                            }
+                            if (!listeners.isEmpty()) {
+                                markInUse(bitmap, null);
+                            }
+                        }
+                        mPendingBitmaps.remove(bitmap);
+                    }
+                    if (cancelled) {
+                        return;
+                    }
+                    for (ImageView view : boundViews) {
+                        view.setImageBitmap(bitmap);
+                    }
+                    for (ImageLoadListener listener : listeners) {
+                        listener.onLoad(bitmap);
                     }
-                } catch (final IOException e) {
-                    e.printStackTrace();
                 }
-            }
-            return false;
+            });
         }
     }
 
-    private void checkViewTags(String url, ImageView view) {
-        Set<ImageView> viewList = mViewTags.get(url);
-        if (viewList == null) {
-            viewList = new LinkedHashSet<ImageView>();
-            mViewTags.put(url, viewList);
-        }
-        viewList.add(view);
-    }
+    /**
+     * 把超大图片下载到硬盘缓存，再把缓存快照交给TiledImage创建区域解码器。
+     * TiledImage关闭后不再下载，正在进行的下载被取消。
+     */
+    private class TiledImageOpener implements LoadScheduler.Task, ImageDownloader.Cancellable {
+        private final TiledImage mImage;
 
-    private void checkListenerTags(String url, ImageLoadListener listener) {
-        Set<ImageLoadListener> listenerList = mListenerTags.get(url);
-        if (listenerList == null) {
-            listenerList = new LinkedHashSet<ImageLoadListener>();
-            mListenerTags.put(url, listenerList);
+        TiledImageOpener(TiledImage image) {
+            mImage = image;
         }
-        listenerList.add(listener);
-    }
 
-    private void setBitmap(String url, Bitmap bm) {
-        try {
-            if (bm == null) {
-                return;
-            }
-            Set<ImageView> viewList = mViewTags.get(url);
-            if (viewList == null) {
-                return;
-            }
+        void start() {
+            mScheduler.submit(this, LoadScheduler.Priority.VISIBLE);
+        }
 
-            for (ImageView imgView : viewList) {
-                if (imgView != null) {
-                    imgView.setImageBitmap(bm);
+        @Override
+        public void run() {
+            LruDiskCache.Snapshot snapShot = null;
+            try {
+                ShardedLruDiskCache diskCache = getDiskCache();
+                if (diskCache == null) {
+                    throw new IOException("disk cache unavailable");
+                }
+                CacheKey key = diskCache.newKey(mImage.getUrl());
+                snapShot = diskCache.get(key);
+                if (snapShot == null && !isCancelled()) {
+                    snapShot = downloadToDiskCache(diskCache, key, mImage.getUrl(), this);
+                }
+                if (snapShot == null) {
+                    if (!isCancelled()) {
+                        mImage.fail(new IOException("failed to load " + mImage.getUrl()));
+                    }
+                    return;
+                }
+                // 快照交给TiledImage持有，关闭时释放
+                LruDiskCache.Snapshot opened = snapShot;
+                snapShot = null;
+                mImage.open(opened);
+            } catch (IOException e) {
+                mImage.fail(e);
+            } finally {
+                if (snapShot != null) {
+                    snapShot.close();
                 }
             }
-            viewList.clear();
-            mViewTags.remove(url);
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+
+        @Override
+        public void onDropped() {
+            mImage.fail(new RejectedExecutionException("dropped by the load scheduler: " + mImage.getUrl()));
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mImage.isClosed();
+        }
+
+        @Override
+        public void setCall(Call call) {
+            mImage.setCall(call);
         }
     }
 
-    private void notifyBitMap(String url, Bitmap bm) {
-        try {
-            if (bm == null) {
-                return;
-            }
-            Set<ImageLoadListener> listenerList = mListenerTags.get(url);
-            if (listenerList == null) {
-                return;
+    /**
+     * 预加载的程度。
+     */
+    public enum PrefetchLevel {
+        /**
+         * 只下载到硬盘缓存，不解码。
+         */
+        DISK,
+        /**
+         * 下载并按指定尺寸解码到内存缓存。
+         */
+        MEMORY
+    }
+
+    /**
+     * 一次prefetch提交的所有任务，可以整体取消。
+     */
+    public final class PrefetchGroup {
+
+        private final List<ImageLoadTask> mGroupTasks = new ArrayList<ImageLoadTask>();
+        private boolean mGroupCancelled;
+
+        private PrefetchGroup() {
+        }
+
+        private void add(ImageLoadTask task) {
+            synchronized (this) {
+                if (!mGroupCancelled) {
+                    mGroupTasks.add(task);
+                    return;
+                }
             }
+            task.removePrefetch(this);
+        }
 
-            for (ImageLoadListener listener : listenerList) {
-                if (listener != null) {
-                    listener.onLoad(bm);
+        /**
+         * 取消这一组中还没有完成的预加载，同时被display或getBitMap等待的图片继续加载。
+         */
+        public void cancel() {
+            List<ImageLoadTask> tasks;
+            synchronized (this) {
+                if (mGroupCancelled) {
+                    return;
                 }
+                mGroupCancelled = true;
+                tasks = new ArrayList<ImageLoadTask>(mGroupTasks);
+                mGroupTasks.clear();
+            }
+            for (ImageLoadTask task : tasks) {
+                task.removePrefetch(this);
             }
-            listenerList.clear();
-            mListenerTags.remove(url);
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+
+        public synchronized boolean isCancelled() {
+            return mGroupCancelled;
         }
     }
 
     public interface ImageLoadListener {
         void onLoad(Bitmap bm);
     }
+
+    /**
+     * 传给getBitMap的监听器如果同时实现了这个接口，加载失败时会收到回调。
+     */
+    public interface ImageLoadErrorListener {
+        void onError(String url, Exception e);
+    }
+
+    public interface DownloadListener {
+        void onDownloaded(DownloadStats stats);
+    }
+
+    /**
+     * 定时接收加载统计和硬盘缓存统计的快照，见{@link #setMetricsListener}。diskMetrics在硬盘缓存不可用时为null。
+     */
+    public interface MetricsListener {
+        void onMetrics(ImageLoadMetrics metrics, DiskCacheMetrics diskMetrics);
+    }
 }
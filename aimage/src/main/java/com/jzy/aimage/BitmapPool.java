@@ -0,0 +1,220 @@
+package com.jzy.aimage;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps mutable bitmaps that are no longer displayed so that later decodes
+ * can reuse their memory through {@code BitmapFactory.Options.inBitmap}.
+ * <p/>
+ * <p>Since KitKat any bitmap with a large enough allocation can be reused, so
+ * bitmaps are bucketed by allocation size and a request takes the smallest one
+ * that fits, if it's at most {@link #MAX_SIZE_MULTIPLE} times too large. Older
+ * versions only reuse bitmaps of exactly the same width, height and config,
+ * which are bucketed by those. When the pool exceeds its byte budget, the
+ * least recently added bitmaps are dropped. Instances are thread-safe.
+ */
+public final class BitmapPool {
+    /**
+     * A pooled bitmap whose allocation is more than this many times the
+     * requested size is not handed out, to avoid pinning large allocations
+     * behind small images.
+     */
+    static final int MAX_SIZE_MULTIPLE = 4;
+
+    private static final boolean REUSE_BY_SIZE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    private final int maxSize;
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> sizeBuckets = new TreeMap<Integer, ArrayDeque<Bitmap>>();
+    private final Map<String, ArrayDeque<Bitmap>> exactBuckets = new HashMap<String, ArrayDeque<Bitmap>>();
+
+    /**
+     * Every pooled bitmap, least recently added first.
+     */
+    private final LinkedHashSet<Bitmap> bitmaps = new LinkedHashSet<Bitmap>();
+    private int size;
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+    private int evictionCount;
+
+    BitmapPool(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Adds {@code bitmap} to the pool. Returns false, leaving the bitmap to
+     * the caller, if it can't be reused or is larger than the whole budget.
+     */
+    synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmaps.contains(bitmap)) {
+            return false;
+        }
+        int bytes = byteCount(bitmap);
+        if (bytes > maxSize) {
+            return false;
+        }
+        bucket(bitmap, bytes, true).addLast(bitmap);
+        bitmaps.add(bitmap);
+        size += bytes;
+        putCount++;
+        trimToSize(maxSize);
+        return true;
+    }
+
+    /**
+     * Removes and returns a bitmap that a decode of {@code width} x
+     * {@code height} pixels in {@code config} can draw into, or null.
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+        if (REUSE_BY_SIZE) {
+            int bytes = width * height * bytesPerPixel(config);
+            Integer bucketSize = sizeBuckets.ceilingKey(bytes);
+            if (bucketSize != null && bucketSize <= (long) bytes * MAX_SIZE_MULTIPLE) {
+                bitmap = sizeBuckets.get(bucketSize).peekLast();
+            }
+        } else {
+            ArrayDeque<Bitmap> bucket = exactBuckets.get(exactKey(width, height, config));
+            if (bucket != null) {
+                bitmap = bucket.peekLast();
+            }
+        }
+        if (bitmap == null) {
+            missCount++;
+            return null;
+        }
+        remove(bitmap);
+        hitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Drops the least recently added bitmaps until the pool holds at most
+     * {@code maxSize} bytes. Pass 0 to empty the pool.
+     */
+    synchronized void trimToSize(int maxSize) {
+        Iterator<Bitmap> it = bitmaps.iterator();
+        while (size > maxSize && it.hasNext()) {
+            Bitmap eldest = it.next();
+            it.remove();
+            bucket(eldest, byteCount(eldest), false).remove(eldest);
+            removeBucketIfEmpty(eldest);
+            size -= byteCount(eldest);
+            evictionCount++;
+            eldest.recycle();
+        }
+    }
+
+    private void remove(Bitmap bitmap) {
+        bitmaps.remove(bitmap);
+        bucket(bitmap, byteCount(bitmap), false).remove(bitmap);
+        removeBucketIfEmpty(bitmap);
+        size -= byteCount(bitmap);
+    }
+
+    private ArrayDeque<Bitmap> bucket(Bitmap bitmap, int bytes, boolean create) {
+        ArrayDeque<Bitmap> bucket;
+        if (REUSE_BY_SIZE) {
+            bucket = sizeBuckets.get(bytes);
+            if (bucket == null && create) {
+                bucket = new ArrayDeque<Bitmap>();
+                sizeBuckets.put(bytes, bucket);
+            }
+        } else {
+            String key = exactKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            bucket = exactBuckets.get(key);
+            if (bucket == null && create) {
+                bucket = new ArrayDeque<Bitmap>();
+                exactBuckets.put(key, bucket);
+            }
+        }
+        return bucket;
+    }
+
+    private void removeBucketIfEmpty(Bitmap bitmap) {
+        if (REUSE_BY_SIZE) {
+            int bytes = byteCount(bitmap);
+            ArrayDeque<Bitmap> bucket = sizeBuckets.get(bytes);
+            if (bucket != null && bucket.isEmpty()) {
+                sizeBuckets.remove(bytes);
+            }
+        } else {
+            String key = exactKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayDeque<Bitmap> bucket = exactBuckets.get(key);
+            if (bucket != null && bucket.isEmpty()) {
+                exactBuckets.remove(key);
+            }
+        }
+    }
+
+    private static String exactKey(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+
+    static int byteCount(Bitmap bitmap) {
+        return REUSE_BY_SIZE ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565) {
+            return 2;
+        }
+        // The deprecated ARGB_4444 is counted as 4 bytes too: the decoder only asks for ARGB_8888,
+        // and overestimating the size of a bitmap it can draw into is harmless.
+        return 4;
+    }
+
+    /**
+     * Returns true if this version of Android can decode into a pooled bitmap
+     * of a different size, which also allows scaling during the decode.
+     */
+    static boolean canReuseBySize() {
+        return REUSE_BY_SIZE;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    public synchronized int putCount() {
+        return putCount;
+    }
+
+    public synchronized int evictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int requests = hitCount + missCount;
+        int hitPercent = requests != 0 ? (100 * hitCount / requests) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,puts=%d,evictions=%d,hitRate=%d%%]",
+                size, maxSize, hitCount, missCount, putCount, evictionCount, hitPercent);
+    }
+}
@@ -0,0 +1,221 @@
+package com.jzy.aimage;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * The HTTP caching headers of a cached image, stored as text in the metadata
+ * value of its disk cache entry: the validators used to revalidate the image
+ * once it expires, and the headers its freshness is computed from.
+ * <p/>
+ * <p>Freshness follows RFC 7234 for a private cache: {@code no-store} and
+ * {@code no-cache} make the image stale at once, {@code max-age} wins over
+ * {@code Expires}, and without either an image with a {@code Last-Modified}
+ * date stays fresh for a tenth of its age. Images without any of these never
+ * expire, as before this class existed. Every image stays fresh for at least
+ * {@link #MIN_FRESHNESS_MILLIS}, so that the loads waiting for a download can
+ * read what it stored.
+ */
+final class CacheHeaders {
+    static final long MIN_FRESHNESS_MILLIS = 10 * 1000;
+
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final String CACHE_CONTROL = "Cache-Control";
+    private static final String EXPIRES = "Expires";
+
+    private static final ThreadLocal<SimpleDateFormat> HTTP_DATE = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setLenient(false);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
+
+    private final String etag;
+    private final String lastModified;
+    private final String cacheControl;
+    private final String expires;
+
+    private CacheHeaders(String etag, String lastModified, String cacheControl, String expires) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.cacheControl = cacheControl;
+        this.expires = expires;
+    }
+
+    static CacheHeaders of(Response response) {
+        return new CacheHeaders(response.header(ETAG), response.header(LAST_MODIFIED),
+                response.header(CACHE_CONTROL), response.header(EXPIRES));
+    }
+
+    /**
+     * Parses the text written by {@link #toString}. Unknown lines are ignored.
+     */
+    static CacheHeaders parse(String text) {
+        String etag = null;
+        String lastModified = null;
+        String cacheControl = null;
+        String expires = null;
+        for (String line : text.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon);
+            String value = line.substring(colon + 1).trim();
+            if (ETAG.equalsIgnoreCase(name)) {
+                etag = value;
+            } else if (LAST_MODIFIED.equalsIgnoreCase(name)) {
+                lastModified = value;
+            } else if (CACHE_CONTROL.equalsIgnoreCase(name)) {
+                cacheControl = value;
+            } else if (EXPIRES.equalsIgnoreCase(name)) {
+                expires = value;
+            }
+        }
+        return new CacheHeaders(etag, lastModified, cacheControl, expires);
+    }
+
+    /**
+     * Returns these headers updated by those of a {@code 304 Not Modified}
+     * response, which replace the stored ones they name.
+     */
+    CacheHeaders update(CacheHeaders notModified) {
+        return new CacheHeaders(
+                notModified.etag != null ? notModified.etag : etag,
+                notModified.lastModified != null ? notModified.lastModified : lastModified,
+                notModified.cacheControl != null ? notModified.cacheControl : cacheControl,
+                notModified.expires != null ? notModified.expires : expires);
+    }
+
+    boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * Returns the validator that an {@code If-Range} header can carry to
+     * continue a body with these headers: the ETag unless it is weak, else
+     * the Last-Modified date, or null if there is neither.
+     */
+    String rangeValidator() {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * Makes {@code builder} request the image only if it changed since these
+     * headers were stored.
+     */
+    void addConditions(Request.Builder builder) {
+        if (etag != null) {
+            builder.header("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            builder.header("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Returns when an image with these headers, served by {@code response}
+     * and received at {@code now}, expires.
+     */
+    long expiryTimestamp(Response response, long now) {
+        long freshness = freshnessMillis(response, now);
+        if (freshness == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return now + Math.max(freshness, MIN_FRESHNESS_MILLIS);
+    }
+
+    private long freshnessMillis(Response response, long now) {
+        long maxAgeSeconds = -1;
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-store") || directive.equals("no-cache")) {
+                    return 0;
+                }
+                if (directive.startsWith("max-age=")) {
+                    maxAgeSeconds = parseSeconds(directive.substring("max-age=".length()));
+                }
+            }
+        }
+        long age = Math.max(0, parseSeconds(response.header("Age"))) * 1000;
+        if (maxAgeSeconds >= 0) {
+            return maxAgeSeconds * 1000 - age;
+        }
+        long servedDate = parseDate(response.header("Date"));
+        if (servedDate == -1) {
+            servedDate = now;
+        }
+        if (expires != null) {
+            long expiresDate = parseDate(expires);
+            // An invalid date means the image has already expired.
+            return expiresDate == -1 ? 0 : expiresDate - servedDate;
+        }
+        if (lastModified != null) {
+            long lastModifiedDate = parseDate(lastModified);
+            if (lastModifiedDate != -1 && lastModifiedDate < servedDate) {
+                return (servedDate - lastModifiedDate) / 10;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+        try {
+            return Math.min(Integer.MAX_VALUE, Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            // Too large for a long, or not a number at all.
+            return value.matches("[0-9]+") ? Integer.MAX_VALUE : -1;
+        }
+    }
+
+    private static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return HTTP_DATE.get().parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the headers as "Name: value" lines, the format stored in the
+     * disk cache.
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        appendLine(result, ETAG, etag);
+        appendLine(result, LAST_MODIFIED, lastModified);
+        appendLine(result, CACHE_CONTROL, cacheControl);
+        appendLine(result, EXPIRES, expires);
+        return result.toString();
+    }
+
+    private static void appendLine(StringBuilder result, String name, String value) {
+        if (value != null) {
+            result.append(name).append(": ").append(value).append('\n');
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.jzy.aimage;
+
+/**
+ * A disk cache key together with the file name it was hashed to. Create keys
+ * with {@link LruDiskCache#newKey} or {@link ShardedLruDiskCache#newKey} and
+ * reuse them for all operations on the same entry, so that the key is hashed
+ * once instead of on every lookup. A key is only valid for caches using the
+ * {@link FileNameGenerator} it was created with.
+ */
+public final class CacheKey {
+    private final String key;
+    private final String diskName;
+
+    CacheKey(String key, String diskName) {
+        this.key = key;
+        this.diskName = diskName;
+    }
+
+    /**
+     * Returns the key as passed by the application.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the file name that the values of this key are stored under.
+     */
+    public String getDiskName() {
+        return diskName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CacheKey && diskName.equals(((CacheKey) o).diskName);
+    }
+
+    @Override
+    public int hashCode() {
+        return diskName.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "CacheKey[" + key + ", " + diskName + "]";
+    }
+}
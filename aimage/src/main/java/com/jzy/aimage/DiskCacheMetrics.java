@@ -0,0 +1,120 @@
+package com.jzy.aimage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latencies of an {@link LruDiskCache}, or the sum over the
+ * shards of a {@link ShardedLruDiskCache}. A cache updates its own instance as
+ * it works and only hands out snapshots of it, so instances seen outside the
+ * cache never change. Instances are thread-safe.
+ */
+public final class DiskCacheMetrics {
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong bytesWritten = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+    final AtomicLong bytesEvicted = new AtomicLong();
+    final AtomicLong expirations = new AtomicLong();
+    final AtomicLong journalRebuilds = new AtomicLong();
+    final LatencyHistogram journalRebuildTime = new LatencyHistogram();
+    final LatencyHistogram lockWait = new LatencyHistogram();
+
+    DiskCacheMetrics() {
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that found no readable, unexpired entry.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long requests = hits + misses.get();
+        return requests != 0 ? (double) hits / requests : 0;
+    }
+
+    /**
+     * Returns the number of value bytes committed by edits.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Returns the number of entries removed to make room or because they
+     * expired.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getBytesEvicted() {
+        return bytesEvicted.get();
+    }
+
+    /**
+     * Returns the number of entries among the evicted ones that were removed
+     * because they expired.
+     */
+    public long getExpirationCount() {
+        return expirations.get();
+    }
+
+    /**
+     * Returns the number of times the journal was checkpointed into the index
+     * and restarted.
+     */
+    public long getJournalRebuildCount() {
+        return journalRebuilds.get();
+    }
+
+    /**
+     * Returns a copy of the time spent checkpointing the journal.
+     */
+    public LatencyHistogram getJournalRebuildTime() {
+        return journalRebuildTime.snapshot();
+    }
+
+    /**
+     * Returns a copy of the time lookups and edits waited for the cache lock.
+     */
+    public LatencyHistogram getLockWait() {
+        return lockWait.snapshot();
+    }
+
+    /**
+     * Returns a copy of the current values, which later operations don't
+     * change.
+     */
+    public DiskCacheMetrics snapshot() {
+        DiskCacheMetrics copy = new DiskCacheMetrics();
+        copy.add(this);
+        return copy;
+    }
+
+    void add(DiskCacheMetrics other) {
+        hits.addAndGet(other.hits.get());
+        misses.addAndGet(other.misses.get());
+        bytesWritten.addAndGet(other.bytesWritten.get());
+        evictions.addAndGet(other.evictions.get());
+        bytesEvicted.addAndGet(other.bytesEvicted.get());
+        expirations.addAndGet(other.expirations.get());
+        journalRebuilds.addAndGet(other.journalRebuilds.get());
+        journalRebuildTime.add(other.journalRebuildTime);
+        lockWait.add(other.lockWait);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DiskCacheMetrics[hits=%d,misses=%d,hitRate=%d%%,written=%d,evictions=%d,"
+                        + "evicted=%d,expirations=%d,journalRebuilds=%d,journalRebuildTime=%s,lockWait=%s]",
+                getHitCount(), getMissCount(), (int) (100 * getHitRate()), getBytesWritten(), getEvictionCount(),
+                getBytesEvicted(), getExpirationCount(), getJournalRebuildCount(), journalRebuildTime, lockWait);
+    }
+}
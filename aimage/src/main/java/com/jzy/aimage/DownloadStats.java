@@ -0,0 +1,81 @@
+package com.jzy.aimage;
+
+/**
+ * Timing of a single image download, as reported to
+ * {@link BitmapHelper.DownloadListener}. All durations are measured from the
+ * moment the request was started.
+ */
+public final class DownloadStats {
+    private final String url;
+    private final long bytes;
+    private final long resumedBytes;
+    private final long timeToFirstByteMillis;
+    private final long totalMillis;
+    private final boolean notModified;
+
+    DownloadStats(String url, long bytes, long resumedBytes, long timeToFirstByteMillis, long totalMillis,
+                  boolean notModified) {
+        this.url = url;
+        this.bytes = bytes;
+        this.resumedBytes = resumedBytes;
+        this.timeToFirstByteMillis = timeToFirstByteMillis;
+        this.totalMillis = totalMillis;
+        this.notModified = notModified;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Returns the number of body bytes transferred and written to the disk cache.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of body bytes kept from an earlier, interrupted
+     * download that this one continued, or 0 if it started from scratch.
+     */
+    public long getResumedBytes() {
+        return resumedBytes;
+    }
+
+    /**
+     * Returns the time until the first byte of the body arrived, or the total
+     * time if the body was empty.
+     */
+    public long getTimeToFirstByteMillis() {
+        return timeToFirstByteMillis;
+    }
+
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    /**
+     * Returns true if this was the revalidation of an expired image that the
+     * server answered with {@code 304 Not Modified}, so no body was transferred.
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+    /**
+     * Returns the transfer rate of the body, measured from its first byte so
+     * that connection setup and server latency don't count against it, or 0
+     * if the transfer took no measurable time.
+     */
+    public long getBytesPerSecond() {
+        long transferMillis = totalMillis - timeToFirstByteMillis;
+        return transferMillis > 0 ? bytes * 1000 / transferMillis : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadStats[" + url + (notModified ? ", not modified" : "") + ", " + bytes + " bytes"
+                + (resumedBytes > 0 ? " after " + resumedBytes + " resumed" : "") + ", ttfb "
+                + timeToFirstByteMillis + " ms, total " + totalMillis + " ms, " + getBytesPerSecond() + " B/s]";
+    }
+}
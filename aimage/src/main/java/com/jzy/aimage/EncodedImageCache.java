@@ -0,0 +1,112 @@
+package com.jzy.aimage;
+
+import android.util.LruCache;
+
+/**
+ * Keeps the compressed bytes of recently loaded images in memory, between the
+ * bitmap cache and the disk cache. A compressed image is typically a tenth to
+ * a twentieth of its decoded size, so this tier holds many more images than
+ * the bitmap cache for the same budget. A bitmap that fell out of the bitmap
+ * cache, or the same image requested at another size, is decoded from here
+ * without any disk I/O or disk cache lock.
+ * <p/>
+ * <p>Entries are keyed by the disk cache name of the image and filled when an
+ * image is read from the disk cache for decoding, including right after a
+ * download. Images larger than an eighth of the budget aren't kept, so that a
+ * single huge image can't flush the tier. Instances are thread-safe.
+ */
+public final class EncodedImageCache {
+    private final LruCache<String, Entry> cache;
+    private final int maxEntrySize;
+
+    EncodedImageCache(int maxSize) {
+        cache = new LruCache<String, Entry>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return value.bytes.length;
+            }
+        };
+        maxEntrySize = maxSize / 8;
+    }
+
+    /**
+     * Returns whether {@code length} bytes are small enough to be kept.
+     */
+    boolean accepts(long length) {
+        return length > 0 && length <= maxEntrySize;
+    }
+
+    /**
+     * Keeps {@code bytes} for {@code key} until {@code expiryTimestamp}, the
+     * expiry of the disk cache entry they were read from.
+     */
+    void put(CacheKey key, byte[] bytes, long expiryTimestamp) {
+        if (accepts(bytes.length)) {
+            cache.put(key.getDiskName(), new Entry(bytes, expiryTimestamp));
+        }
+    }
+
+    /**
+     * Returns the bytes of the image for {@code key}, or null if there are
+     * none or they expired with their disk cache entry. The array is shared
+     * and must not be modified.
+     */
+    byte[] get(CacheKey key) {
+        Entry entry = cache.get(key.getDiskName());
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiryTimestamp < System.currentTimeMillis()) {
+            // The disk cache revalidates the image; read it from there again.
+            cache.remove(key.getDiskName());
+            return null;
+        }
+        return entry.bytes;
+    }
+
+    void remove(CacheKey key) {
+        cache.remove(key.getDiskName());
+    }
+
+    public void evictAll() {
+        cache.evictAll();
+    }
+
+    /**
+     * Returns the number of bytes held.
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    public int maxSize() {
+        return cache.maxSize();
+    }
+
+    public int hitCount() {
+        return cache.hitCount();
+    }
+
+    public int missCount() {
+        return cache.missCount();
+    }
+
+    @Override
+    public String toString() {
+        int hitCount = cache.hitCount();
+        int requests = hitCount + cache.missCount();
+        int hitPercent = requests != 0 ? (100 * hitCount / requests) : 0;
+        return String.format("EncodedImageCache[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                cache.size(), cache.maxSize(), hitCount, cache.missCount(), hitPercent);
+    }
+
+    private static final class Entry {
+        final byte[] bytes;
+        final long expiryTimestamp;
+
+        Entry(byte[] bytes, long expiryTimestamp) {
+            this.bytes = bytes;
+            this.expiryTimestamp = expiryTimestamp;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.jzy.aimage;
+
+/**
+ * Derives the file name under which {@link LruDiskCache} stores the values of
+ * a key. Names must be stable across runs, unique in practice and consist of
+ * characters that are valid in file names; changing the generator of an
+ * existing cache directory orphans its entries, so applications that do should
+ * also change their app version.
+ */
+public interface FileNameGenerator {
+    String generate(String key);
+}
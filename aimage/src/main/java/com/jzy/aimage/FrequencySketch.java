@@ -0,0 +1,97 @@
+package com.jzy.aimage;
+
+/**
+ * A count-min sketch estimating how often each key was requested recently,
+ * used by {@link LruDiskCache} to decide whether a new entry is worth more
+ * than the entry it would push out.
+ * <p/>
+ * <p>Each key maps to four 4-bit counters, one in each of four 16-counter
+ * groups of a long, so an increment touches a single long of the table. The
+ * estimate is the smallest of the four counters. To forget old popularity,
+ * all counters are halved once the table has seen ten increments per slot.
+ * The table takes 8 bytes per tracked entry and is not persisted.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private long[] table = new long[1];
+    private int sampleSize = 10;
+    private int additions;
+
+    /**
+     * Grows the table to track about {@code expectedEntries} keys. Growing
+     * forgets all counts.
+     */
+    void ensureCapacity(int expectedEntries) {
+        int capacity = Integer.highestOneBit(Math.max(1, Math.min(expectedEntries, 1 << 24)) * 2 - 1);
+        if (table.length >= capacity) {
+            return;
+        }
+        table = new long[capacity];
+        sampleSize = 10 * capacity;
+        additions = 0;
+    }
+
+    /**
+     * Returns the estimated number of recent requests of {@code key}, at most 15.
+     */
+    int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int group = (hash & 3) << 2;
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            long word = table[indexOf(hash, i)];
+            frequency = Math.min(frequency, (int) (word >>> ((group + i) << 2)) & 0xf);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records a request of {@code key}.
+     */
+    void increment(String key) {
+        int hash = spread(key.hashCode());
+        int group = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), group + i);
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int shift = counter << 2;
+        long mask = 0xfL << shift;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << shift;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter, so that keys that stopped being requested fade.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & (table.length - 1);
+    }
+
+    private static int spread(int h) {
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+}
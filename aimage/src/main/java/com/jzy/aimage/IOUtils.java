@@ -15,8 +15,6 @@
 
 package com.jzy.aimage;
 
-import android.database.Cursor;
-
 import java.io.Closeable;
 
 /**
@@ -37,13 +35,4 @@ public class IOUtils {
             }
         }
     }
-
-    public static void closeQuietly(Cursor cursor) {
-        if (cursor != null) {
-            try {
-                cursor.close();
-            } catch (Throwable e) {
-            }
-        }
-    }
 }
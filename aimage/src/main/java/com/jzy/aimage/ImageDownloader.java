@@ -0,0 +1,249 @@
+package com.jzy.aimage;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * Streams HTTP response bodies into a disk cache editor. The body is copied
+ * straight from OkHttp's buffer to the editor's file stream in
+ * {@link #CHUNK_SIZE} chunks, without intermediate buffered streams; each
+ * loader thread reuses one chunk buffer for all of its downloads.
+ * <p/>
+ * <p>Each entry holds the body at {@link #BODY_INDEX} and its
+ * {@link CacheHeaders} at {@link #HEADERS_INDEX}; the entry's expiry is set
+ * from those headers. An expired entry is revalidated with a conditional
+ * request, and a {@code 304 Not Modified} only refreshes its headers and
+ * expiry.
+ * <p/>
+ * <p>A download that is interrupted after at least {@link #MIN_PARTIAL_BYTES}
+ * of a body with a strong validator keeps what it wrote as a partial value of
+ * the entry. The next download of the entry asks for the rest with a
+ * {@code Range} request guarded by {@code If-Range}, and appends it if the
+ * server answers with the matching {@code 206 Partial Content}; any other
+ * answer starts over.
+ */
+final class ImageDownloader {
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    static final int BODY_INDEX = 0;
+    static final int HEADERS_INDEX = 1;
+    static final int VALUE_COUNT = 2;
+
+    /**
+     * Interrupted bodies shorter than this are cheaper to fetch again than to
+     * continue.
+     */
+    static final long MIN_PARTIAL_BYTES = CHUNK_SIZE;
+
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_NOT_MODIFIED = 304;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final ThreadLocal<byte[]> CHUNKS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    /**
+     * The owner of a download, asked before the download starts whether it is
+     * still wanted and given the call so that it can cancel it later.
+     */
+    interface Cancellable {
+        boolean isCancelled();
+
+        void setCall(Call call);
+    }
+
+    private final OkHttpClient client;
+
+    ImageDownloader(OkHttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Prepares the download of {@code url} into {@code editor}. The request
+     * revalidates the entry's stored headers and continues its partial body,
+     * if it has either.
+     */
+    Download newDownload(String url, LruDiskCache.Editor editor) throws IOException {
+        String stored = editor.getString(HEADERS_INDEX);
+        CacheHeaders validators = stored != null ? CacheHeaders.parse(stored) : null;
+        if (validators != null && !validators.hasValidators()) {
+            validators = null;
+        }
+        long partialLength = editor.getPartialLength(BODY_INDEX);
+        String rangeValidator = null;
+        if (partialLength > 0) {
+            String partialHeaders = editor.getPartialString(HEADERS_INDEX);
+            if (partialHeaders != null) {
+                rangeValidator = CacheHeaders.parse(partialHeaders).rangeValidator();
+            }
+        }
+        if (rangeValidator == null) {
+            partialLength = 0;
+        }
+
+        Request.Builder builder = new Request.Builder().url(url);
+        if (validators != null) {
+            validators.addConditions(builder);
+        }
+        if (partialLength > 0) {
+            builder.header("Range", "bytes=" + partialLength + "-");
+            builder.header("If-Range", rangeValidator);
+        }
+        return new Download(url, client.newCall(builder.build()), validators, partialLength, editor);
+    }
+
+    /**
+     * Returns the first byte position of a {@code Content-Range} header such
+     * as "bytes 100-999/1000", or -1 if it can't be parsed.
+     */
+    static long contentRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash == -1) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * One download into a disk cache editor. The caller commits the edit.
+     */
+    static final class Download {
+        private final String url;
+        private final Call call;
+        private final CacheHeaders stored;
+        private final long partialLength;
+        private final LruDiskCache.Editor editor;
+
+        private Download(String url, Call call, CacheHeaders stored, long partialLength,
+                         LruDiskCache.Editor editor) {
+            this.url = url;
+            this.call = call;
+            this.stored = stored;
+            this.partialLength = partialLength;
+            this.editor = editor;
+        }
+
+        /**
+         * Returns the call, to be able to cancel the download from another thread.
+         */
+        Call getCall() {
+            return call;
+        }
+
+        /**
+         * Executes the call and writes the response into the editor. Throws if
+         * the server doesn't answer with a success code or a {@code 304} to a
+         * conditional request, the transfer fails or the call is cancelled.
+         * An interrupted body may be kept as a partial value, which ends the
+         * edit.
+         */
+        DownloadStats execute() throws IOException {
+            long start = SystemClock.elapsedRealtime();
+            Response response = null;
+            try {
+                response = call.execute();
+                long now = System.currentTimeMillis();
+                int code = response.code();
+                if (code == HTTP_NOT_MODIFIED && stored != null) {
+                    CacheHeaders headers = stored.update(CacheHeaders.of(response));
+                    editor.set(HEADERS_INDEX, headers.toString());
+                    editor.setEntryExpiryTimestamp(headers.expiryTimestamp(response, now));
+                    long end = SystemClock.elapsedRealtime();
+                    return new DownloadStats(url, 0, 0, end - start, end - start, true);
+                }
+                boolean resume = false;
+                if (partialLength > 0 && (code == HTTP_PARTIAL_CONTENT || code == HTTP_RANGE_NOT_SATISFIABLE)) {
+                    resume = code == HTTP_PARTIAL_CONTENT
+                            && contentRangeStart(response.header("Content-Range")) == partialLength;
+                    if (!resume) {
+                        // The partial body can't be continued; the next attempt starts over.
+                        editor.discardPartial();
+                        throw new IOException("HTTP " + code + " (" + response.header("Content-Range")
+                                + ") resuming " + url + " at " + partialLength);
+                    }
+                } else if (!response.isSuccessful() || code == HTTP_PARTIAL_CONTENT) {
+                    throw new IOException("HTTP " + code + " for " + url);
+                }
+                CacheHeaders headers = CacheHeaders.of(response);
+                // The headers go first, so that an interrupted body can be continued with their validator.
+                editor.set(HEADERS_INDEX, headers.toString());
+                long resumedBytes = resume ? partialLength : 0;
+                long[] progress = new long[2];
+                try {
+                    copyBody(response, resume, progress);
+                } catch (IOException e) {
+                    keepPartial(response, headers, resumedBytes + progress[0]);
+                    throw e;
+                }
+                editor.setEntryExpiryTimestamp(headers.expiryTimestamp(response, now));
+                long end = SystemClock.elapsedRealtime();
+                long firstByte = progress[1] == -1 ? end : progress[1];
+                return new DownloadStats(url, progress[0], resumedBytes, firstByte - start, end - start, false);
+            } finally {
+                IOUtils.closeQuietly(response);
+            }
+        }
+
+        /**
+         * Writes the body into the editor, appending it to the partial body if
+         * {@code resume}. Keeps the number of bytes written in
+         * {@code progress[0]} and the arrival time of the first byte, or -1, in
+         * {@code progress[1]}, so that both are known if the transfer fails.
+         */
+        private void copyBody(Response response, boolean resume, long[] progress) throws IOException {
+            progress[1] = -1;
+            OutputStream out = resume
+                    ? editor.newAppendingOutputStream(BODY_INDEX) : editor.newOutputStream(BODY_INDEX);
+            try {
+                BufferedSource source = response.body().source();
+                byte[] chunk = CHUNKS.get();
+                int count;
+                while ((count = source.read(chunk, 0, chunk.length)) != -1) {
+                    if (progress[1] == -1) {
+                        progress[1] = SystemClock.elapsedRealtime();
+                    }
+                    out.write(chunk, 0, count);
+                    progress[0] += count;
+                }
+                out.close();
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+        }
+
+        /**
+         * Keeps the body written so far for the next download if it is long
+         * enough and the server can be asked for the rest.
+         */
+        private void keepPartial(Response response, CacheHeaders headers, long written) {
+            if (written < MIN_PARTIAL_BYTES || headers.rangeValidator() == null
+                    || "none".equalsIgnoreCase(response.header("Accept-Ranges"))) {
+                return;
+            }
+            try {
+                editor.abortKeepingPartial();
+            } catch (IOException ignored) {
+                // The edit is aborted by its owner and the next download starts over.
+            }
+        }
+    }
+}
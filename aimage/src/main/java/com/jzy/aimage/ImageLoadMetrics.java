@@ -0,0 +1,193 @@
+package com.jzy.aimage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latencies of the load pipeline of {@link BitmapHelper}, from
+ * the memory cache down to the network. The disk cache keeps its own
+ * {@link DiskCacheMetrics}. {@link BitmapHelper#getMetrics} returns a
+ * snapshot; recording is lock-free and cheap enough to leave on in release
+ * builds. Instances are thread-safe.
+ */
+public final class ImageLoadMetrics {
+    final AtomicLong memoryHits = new AtomicLong();
+    final AtomicLong memoryMisses = new AtomicLong();
+    final AtomicLong encodedHits = new AtomicLong();
+    final AtomicLong diskHits = new AtomicLong();
+    final AtomicLong downloads = new AtomicLong();
+    final AtomicLong notModified = new AtomicLong();
+    final AtomicLong resumedDownloads = new AtomicLong();
+    final AtomicLong bytesDownloaded = new AtomicLong();
+    final AtomicLong transferMillis = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    final LatencyHistogram queueWait = new LatencyHistogram();
+    final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    final LatencyHistogram downloadTime = new LatencyHistogram();
+    final LatencyHistogram decodeTime = new LatencyHistogram();
+
+    ImageLoadMetrics() {
+    }
+
+    void recordDownload(DownloadStats stats) {
+        downloads.incrementAndGet();
+        if (stats.isNotModified()) {
+            notModified.incrementAndGet();
+        }
+        if (stats.getResumedBytes() > 0) {
+            resumedDownloads.incrementAndGet();
+        }
+        bytesDownloaded.addAndGet(stats.getBytes());
+        transferMillis.addAndGet(stats.getTotalMillis() - stats.getTimeToFirstByteMillis());
+        timeToFirstByte.record(stats.getTimeToFirstByteMillis() * 1000000);
+        downloadTime.record(stats.getTotalMillis() * 1000000);
+    }
+
+    /**
+     * Returns the number of loads answered by the memory cache, including its
+     * weakly referenced tier.
+     */
+    public long getMemoryHitCount() {
+        return memoryHits.get();
+    }
+
+    /**
+     * Returns the number of loads that had to start or join a load task.
+     */
+    public long getMemoryMissCount() {
+        return memoryMisses.get();
+    }
+
+    public double getMemoryHitRate() {
+        return rate(memoryHits.get(), memoryMisses.get());
+    }
+
+    /**
+     * Returns the number of decodes served by the encoded-bytes tier.
+     */
+    public long getEncodedHitCount() {
+        return encodedHits.get();
+    }
+
+    /**
+     * Returns the number of load tasks served by the disk cache.
+     */
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    /**
+     * Returns the share of the load tasks reaching the disk cache that it
+     * served without going to the network.
+     */
+    public double getDiskHitRate() {
+        return rate(diskHits.get(), downloads.get());
+    }
+
+    /**
+     * Returns the number of network requests, including revalidations.
+     */
+    public long getDownloadCount() {
+        return downloads.get();
+    }
+
+    /**
+     * Returns the number of revalidations answered with {@code 304 Not Modified}.
+     */
+    public long getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    /**
+     * Returns the number of downloads that continued an interrupted one.
+     */
+    public long getResumedDownloadCount() {
+        return resumedDownloads.get();
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    /**
+     * Returns the mean transfer rate of the bodies, measured from their first
+     * bytes, or 0 if the transfers took no measurable time.
+     */
+    public long getBytesPerSecond() {
+        long bytes = bytesDownloaded.get();
+        long millis = transferMillis.get();
+        return millis > 0 ? bytes * 1000 / millis : 0;
+    }
+
+    /**
+     * Returns the number of load tasks that failed with an exception.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of load tasks the scheduler dropped without running.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the time load tasks waited for a scheduler thread.
+     */
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public LatencyHistogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    public LatencyHistogram getDownloadTime() {
+        return downloadTime;
+    }
+
+    public LatencyHistogram getDecodeTime() {
+        return decodeTime;
+    }
+
+    /**
+     * Returns a copy of the current values, which later loads don't change.
+     */
+    public ImageLoadMetrics snapshot() {
+        ImageLoadMetrics copy = new ImageLoadMetrics();
+        copy.memoryHits.set(memoryHits.get());
+        copy.memoryMisses.set(memoryMisses.get());
+        copy.encodedHits.set(encodedHits.get());
+        copy.diskHits.set(diskHits.get());
+        copy.downloads.set(downloads.get());
+        copy.notModified.set(notModified.get());
+        copy.resumedDownloads.set(resumedDownloads.get());
+        copy.bytesDownloaded.set(bytesDownloaded.get());
+        copy.transferMillis.set(transferMillis.get());
+        copy.failures.set(failures.get());
+        copy.dropped.set(dropped.get());
+        copy.queueWait.add(queueWait);
+        copy.timeToFirstByte.add(timeToFirstByte);
+        copy.downloadTime.add(downloadTime);
+        copy.decodeTime.add(decodeTime);
+        return copy;
+    }
+
+    private static double rate(long hits, long misses) {
+        long requests = hits + misses;
+        return requests != 0 ? (double) hits / requests : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ImageLoadMetrics[memoryHitRate=%d%%,encodedHits=%d,diskHitRate=%d%%,downloads=%d,"
+                        + "notModified=%d,resumed=%d,bytes=%d,%dB/s,failures=%d,dropped=%d,queueWait=%s,ttfb=%s,"
+                        + "download=%s,decode=%s]",
+                (int) (100 * getMemoryHitRate()), getEncodedHitCount(), (int) (100 * getDiskHitRate()),
+                getDownloadCount(), getNotModifiedCount(), getResumedDownloadCount(), getBytesDownloaded(),
+                getBytesPerSecond(), getFailureCount(), getDroppedCount(), queueWait, timeToFirstByte,
+                downloadTime, decodeTime);
+    }
+}
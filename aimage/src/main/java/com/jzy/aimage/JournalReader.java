@@ -0,0 +1,162 @@
+package com.jzy.aimage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the binary records written by {@link JournalWriter}, either from a
+ * journal or from an index checkpoint. The whole file is loaded with a single
+ * bulk read, or memory-mapped if it is large, and decoded straight from the
+ * buffer. After each call to {@link #next} returning true, the fields of the
+ * record are available in {@link #tag}, {@link #key}, {@link #expiryTimestamp},
+ * {@link #lengths} and {@link #addresses}. CLEAN and PACKED records are both
+ * reported as CLEAN, with all addresses 0 for the former.
+ */
+final class JournalReader {
+    /**
+     * Files larger than this are memory-mapped rather than read into the heap.
+     */
+    static final int MAP_THRESHOLD = 64 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final ByteBuffer buffer;
+    private final int valueCount;
+    private char[] keyChars = new char[64];
+    private byte[] keyBytes = new byte[64];
+
+    byte tag;
+    String key;
+    long expiryTimestamp;
+    final long[] lengths;
+    final long[] addresses;
+
+    private JournalReader(ByteBuffer buffer, int valueCount) {
+        this.buffer = buffer;
+        this.valueCount = valueCount;
+        this.lengths = new long[valueCount];
+        this.addresses = new long[valueCount];
+    }
+
+    static JournalReader open(File file, int valueCount) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            ByteBuffer buffer;
+            if (size > MAP_THRESHOLD) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                }
+                buffer.flip();
+            }
+            return new JournalReader(buffer, valueCount);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reads the header and returns the checkpoint generation it names, or -1
+     * if the file doesn't start with {@code magic}. Throws if the header
+     * belongs to another application version or value count.
+     */
+    long readHeader(int magic, int appVersion) throws IOException {
+        if (buffer.remaining() < 4 || buffer.getInt() != magic) {
+            return -1;
+        }
+        int version = readInt();
+        int appVersionRead = readInt();
+        int valueCountRead = readInt();
+        long generation = (long) readInt() << 32 | (readInt() & 0xffffffffL);
+        if (version != JournalWriter.VERSION
+                || appVersionRead != appVersion
+                || valueCountRead != valueCount
+                || generation < 0) {
+            throw new IOException("unexpected journal header: [" + version + ", "
+                    + appVersionRead + ", " + valueCountRead + ", " + generation + "]");
+        }
+        return generation;
+    }
+
+    /**
+     * Reads the next record. Returns false at the end of the file and throws
+     * {@link EOFException} if the last record was cut off.
+     */
+    boolean next() throws IOException {
+        if (!buffer.hasRemaining()) {
+            return false;
+        }
+        tag = buffer.get();
+        key = readKey();
+        if (tag == JournalWriter.CLEAN || tag == JournalWriter.PACKED) {
+            boolean packed = tag == JournalWriter.PACKED;
+            tag = JournalWriter.CLEAN;
+            long expiry = readVarLong();
+            expiryTimestamp = expiry == 0 ? Long.MAX_VALUE : expiry - 1;
+            for (int i = 0; i < valueCount; i++) {
+                addresses[i] = packed ? readVarLong() : 0;
+                lengths[i] = readVarLong();
+            }
+        } else if (tag != JournalWriter.UPDATE
+                && tag != JournalWriter.DELETE
+                && tag != JournalWriter.READ) {
+            throw new IOException("unexpected journal record: " + (char) tag);
+        }
+        return true;
+    }
+
+    private String readKey() throws IOException {
+        long header = readVarLong();
+        int length = (int) (header >>> 1);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new EOFException();
+        }
+        if ((header & 1) == 0) {
+            if (keyBytes.length < length) {
+                keyBytes = new byte[length];
+            }
+            buffer.get(keyBytes, 0, length);
+            return new String(keyBytes, 0, length, JournalWriter.UTF_8);
+        }
+        int charCount = length * 2;
+        if (keyChars.length < charCount) {
+            keyChars = new char[charCount];
+        }
+        for (int i = 0; i < length; i++) {
+            int b = readByte();
+            keyChars[2 * i] = HEX_DIGITS[b >>> 4];
+            keyChars[2 * i + 1] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(keyChars, 0, charCount);
+    }
+
+    private int readInt() throws IOException {
+        return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+    }
+
+    private long readVarLong() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private int readByte() throws IOException {
+        if (!buffer.hasRemaining()) {
+            throw new EOFException();
+        }
+        return buffer.get() & 0xff;
+    }
+}
@@ -0,0 +1,316 @@
+package com.jzy.aimage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends binary records to a {@link LruDiskCache} journal or index checkpoint.
+ * <p/>
+ * <p>Records are only encoded into an in-memory batch by the calling thread,
+ * which costs no system call. A shared background thread group-commits the
+ * batch to the file at most {@code flushIntervalMillis} after its first record
+ * was added, or as soon as the batch grows beyond {@link #MAX_BATCH_SIZE}. A
+ * crash therefore loses at most the records of the last flush interval; the
+ * cache tolerates that because lost records only describe files that are
+ * either still consistent or garbage collected on the next open.
+ * <p/>
+ * <p>Both files start with a header of four big-endian ints and a long: the
+ * magic {@link #JOURNAL_MAGIC} or {@link #INDEX_MAGIC}, the format
+ * {@link #VERSION}, the application's version, the value count and the
+ * generation of the checkpoint the file belongs to. Each record that follows
+ * is a tag byte, the key and, for CLEAN records, the expiry timestamp and the
+ * length of every value. PACKED records are CLEAN records of entries with
+ * values in a {@link PackStore} segment; they carry the address of every
+ * value before its length. Numbers are unsigned LEB128 varints. A key is a
+ * varint header of {@code (byteLength << 1) | packed} followed by its bytes:
+ * lowercase hex keys, such as the default MD5 names, are packed to two digits
+ * per byte, any other key is written as UTF-8.
+ */
+final class JournalWriter implements Closeable {
+    static final int JOURNAL_MAGIC = 0x414a524e; // "AJRN"
+    static final int INDEX_MAGIC = 0x41494458; // "AIDX"
+    static final int VERSION = 2;
+
+    static final Charset UTF_8 = Charset.forName(LruDiskCache.UTF_8);
+
+    static final byte CLEAN = 'C';
+    static final byte PACKED = 'P';
+    static final byte UPDATE = 'U';
+    static final byte DELETE = 'D';
+    static final byte READ = 'R';
+
+    /**
+     * A batch this large is flushed without waiting for the flush interval.
+     */
+    static final int MAX_BATCH_SIZE = 32 * 1024;
+
+    private static final ScheduledThreadPoolExecutor FLUSHER =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LruDiskCache journal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        FLUSHER.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        FLUSHER.allowCoreThreadTimeOut(true);
+    }
+
+    private final FileOutputStream out;
+    private final long flushIntervalMillis;
+
+    /**
+     * Held while a batch is written so that batches reach the file in order.
+     * Appending threads only ever take the lock of this writer.
+     */
+    private final Object fileLock = new Object();
+
+    private byte[] batch = new byte[1024];
+    private byte[] spare = new byte[1024];
+    private int count;
+    private boolean flushScheduled;
+    private boolean urgentFlushScheduled;
+    private boolean closed;
+    private IOException error;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (IOException e) {
+                // Reported by the next explicit flush() or close().
+                synchronized (JournalWriter.this) {
+                    error = e;
+                }
+            }
+        }
+    };
+
+    private JournalWriter(FileOutputStream out, long flushIntervalMillis) {
+        this.out = out;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * Creates or truncates {@code file} and writes a header with {@code magic}
+     * to it.
+     */
+    static JournalWriter create(File file, int magic, int appVersion, int valueCount, long generation,
+                                long flushIntervalMillis) throws IOException {
+        JournalWriter writer = new JournalWriter(new FileOutputStream(file), flushIntervalMillis);
+        writer.writeInt(magic);
+        writer.writeInt(VERSION);
+        writer.writeInt(appVersion);
+        writer.writeInt(valueCount);
+        writer.writeInt((int) (generation >>> 32));
+        writer.writeInt((int) generation);
+        return writer;
+    }
+
+    /**
+     * Opens {@code file}, which must already start with a header, to
+     * append records to it.
+     */
+    static JournalWriter append(File file, long flushIntervalMillis) throws IOException {
+        return new JournalWriter(new FileOutputStream(file, true), flushIntervalMillis);
+    }
+
+    synchronized void writeClean(String key, long expiryTimestamp, long[] lengths, long[] addresses) {
+        checkNotClosed();
+        boolean packed = false;
+        for (long address : addresses) {
+            packed |= address != 0;
+        }
+        writeByte(packed ? PACKED : CLEAN);
+        writeKey(key);
+        // Zero stands for entries that never expire, which would otherwise take nine bytes.
+        writeVarLong(expiryTimestamp == Long.MAX_VALUE ? 0 : expiryTimestamp + 1);
+        for (int i = 0; i < lengths.length; i++) {
+            if (packed) {
+                writeVarLong(addresses[i]);
+            }
+            writeVarLong(lengths[i]);
+        }
+        recordWritten();
+    }
+
+    synchronized void writeUpdate(String key) {
+        writeRecord(UPDATE, key);
+    }
+
+    synchronized void writeDelete(String key) {
+        writeRecord(DELETE, key);
+    }
+
+    synchronized void writeRead(String key) {
+        writeRecord(READ, key);
+    }
+
+    private void writeRecord(byte tag, String key) {
+        checkNotClosed();
+        writeByte(tag);
+        writeKey(key);
+        recordWritten();
+    }
+
+    /**
+     * Records must never be dropped silently: the cache replaces a writer
+     * before closing or discarding it.
+     */
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("journal writer is closed");
+        }
+    }
+
+    private void recordWritten() {
+        if (count >= MAX_BATCH_SIZE) {
+            if (!urgentFlushScheduled) {
+                urgentFlushScheduled = true;
+                FLUSHER.execute(flushTask);
+            }
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            FLUSHER.schedule(flushTask, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes every record appended so far to the file.
+     */
+    void flush() throws IOException {
+        synchronized (fileLock) {
+            byte[] toWrite;
+            int length;
+            synchronized (this) {
+                flushScheduled = false;
+                urgentFlushScheduled = false;
+                if (closed) {
+                    return;
+                }
+                if (error != null) {
+                    IOException e = error;
+                    error = null;
+                    throw e;
+                }
+                toWrite = batch;
+                length = count;
+                batch = spare;
+                count = 0;
+            }
+            try {
+                if (length > 0) {
+                    out.write(toWrite, 0, length);
+                }
+            } finally {
+                synchronized (this) {
+                    spare = toWrite;
+                }
+            }
+        }
+    }
+
+    /**
+     * Flushes the pending records and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            synchronized (fileLock) {
+                synchronized (this) {
+                    closed = true;
+                }
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the file, dropping the records that were not flushed yet. Used
+     * once a rebuilt index and journal have replaced this journal.
+     */
+    void discard() {
+        synchronized (fileLock) {
+            synchronized (this) {
+                closed = true;
+                count = 0;
+            }
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private void writeKey(String key) {
+        int length = key.length();
+        if (isPackableHex(key)) {
+            writeVarLong(((long) length / 2 << 1) | 1);
+            for (int i = 0; i < length; i += 2) {
+                writeByte((byte) (hexValue(key.charAt(i)) << 4 | hexValue(key.charAt(i + 1))));
+            }
+        } else {
+            byte[] bytes = key.getBytes(UTF_8);
+            writeVarLong((long) bytes.length << 1);
+            for (byte b : bytes) {
+                writeByte(b);
+            }
+        }
+    }
+
+    private static boolean isPackableHex(String key) {
+        int length = key.length();
+        if (length == 0 || (length & 1) != 0) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (hexValue(key.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private void writeInt(int value) {
+        writeByte((byte) (value >>> 24));
+        writeByte((byte) (value >>> 16));
+        writeByte((byte) (value >>> 8));
+        writeByte((byte) value);
+    }
+
+    private void writeVarLong(long value) {
+        while ((value & ~0x7fL) != 0) {
+            writeByte((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((byte) value);
+    }
+
+    private void writeByte(byte b) {
+        if (count == batch.length) {
+            byte[] grown = new byte[batch.length * 2];
+            System.arraycopy(batch, 0, grown, 0, count);
+            batch = grown;
+        }
+        batch[count++] = b;
+    }
+}
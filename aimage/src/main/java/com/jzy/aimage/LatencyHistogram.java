@@ -0,0 +1,121 @@
+package com.jzy.aimage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets whose bounds grow in powers of two from one
+ * microsecond, so that percentiles are known within a factor of two.
+ * Recording is lock-free and costs a few atomic adds, cheap enough to leave
+ * on in release builds. Instances are thread-safe.
+ */
+public final class LatencyHistogram {
+    /**
+     * Bucket i counts durations of [2^(i-1), 2^i) microseconds, bucket 0
+     * those under a microsecond; the last one takes everything longer.
+     */
+    private static final int BUCKET_COUNT = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public LatencyHistogram() {
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // Retry until the max is at least nanos.
+        }
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, a value of
+     * {@link System#nanoTime}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        long count = this.count.get();
+        return count != 0 ? totalNanos.get() / 1e6 / count : 0;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, in
+     * milliseconds, or 0 if nothing was recorded.
+     */
+    public double getPercentileMillis(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile: " + percentile);
+        }
+        long count = 0;
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min((1L << i) / 1e3, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * Returns a copy of the current counts, which later records don't change.
+     */
+    public LatencyHistogram snapshot() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * Adds the counts of {@code other} to this histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.addAndGet(i, other.buckets.get(i));
+        }
+        count.addAndGet(other.count.get());
+        totalNanos.addAndGet(other.totalNanos.get());
+        long otherMax = other.maxNanos.get();
+        long max;
+        while (otherMax > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, otherMax)) {
+            // Retry until the max is at least otherMax.
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[count=%d,mean=%.2fms,p50=%.2fms,p99=%.2fms,max=%.2fms]",
+                getCount(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+    }
+}
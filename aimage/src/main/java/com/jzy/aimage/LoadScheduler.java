@@ -0,0 +1,54 @@
+package com.jzy.aimage;
+
+/**
+ * Runs the load tasks of {@link BitmapHelper}. Implementations decide which
+ * of the waiting tasks runs next and may drop tasks they can't keep up with;
+ * {@link PriorityLoadScheduler} is the default.
+ */
+public interface LoadScheduler {
+
+    /**
+     * How urgently a load is needed, most urgent first.
+     */
+    enum Priority {
+        /**
+         * The image is about to be shown.
+         */
+        VISIBLE,
+        /**
+         * The image was requested but isn't known to be on screen; the default for listeners.
+         */
+        BACKGROUND,
+        /**
+         * The image may be needed later.
+         */
+        PREFETCH
+    }
+
+    /**
+     * A task that learns when its scheduler drops it without running it.
+     */
+    interface Task extends Runnable {
+        void onDropped();
+    }
+
+    /**
+     * A submitted task.
+     */
+    interface Job {
+        Priority getPriority();
+
+        /**
+         * Changes the priority of the task if it hasn't started yet.
+         */
+        void setPriority(Priority priority);
+
+        /**
+         * Removes the task if it hasn't started yet, or interrupts the thread
+         * running it. A cancelled task isn't told that it was dropped.
+         */
+        void cancel();
+    }
+
+    Job submit(Task task, Priority priority);
+}
@@ -16,7 +16,6 @@
 
 package com.jzy.aimage;
 
-import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.EOFException;
@@ -34,15 +33,32 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A cache that uses a bounded amount of space on a filesystem. Each cache
@@ -90,10 +106,64 @@ import java.util.concurrent.TimeUnit;
 public final class LruDiskCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TEMP = "journal.tmp";
-    static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+    static final String INDEX_FILE = "index";
+    static final String INDEX_FILE_TEMP = "index.tmp";
+    static final String PARTIAL_FILE_SUFFIX = ".part";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
+
+    /**
+     * How often a read retries to open a snapshot that concurrent edits made
+     * stale before giving up.
+     */
+    private static final int MAX_SNAPSHOT_ATTEMPTS = 3;
+
+    /**
+     * The share of the budget that partial values of interrupted downloads
+     * may take together.
+     */
+    private static final float MAX_PARTIAL_FRACTION = 0.125f;
+
+    static final float DEFAULT_LOW_WATERMARK = 0.9f;
+
+    /**
+     * The expiry sweeper removes at most this many entries per lock hold.
+     */
+    static final int MAX_EXPIRIES_PER_SWEEP = 256;
+
+    /**
+     * Schedules expiry sweeps of all caches; the sweeps themselves run on
+     * each cache's cleanup thread.
+     */
+    private static final ScheduledThreadPoolExecutor EXPIRY_SCHEDULER =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LruDiskCache expiry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        EXPIRY_SCHEDULER.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        EXPIRY_SCHEDULER.allowCoreThreadTimeOut(true);
+        EXPIRY_SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * In {@link AccessRecording#SAMPLED} mode, each hit is recorded with a
+     * probability of one in this many.
+     */
+    static final int ACCESS_SAMPLE_INTERVAL = 16;
+
+    /**
+     * In {@link AccessRecording#BUFFERED} mode, the buffered keys are written
+     * once there are this many of them.
+     */
+    static final int MAX_BUFFERED_READS = 512;
+    static final long JOURNAL_FLUSH_INTERVAL_MILLIS = 1000;
     private static final char CLEAN = 'C';
     private static final char UPDATE = 'U';
     private static final char DELETE = 'D';
@@ -104,8 +174,11 @@ public final class LruDiskCache implements Closeable {
     public static final String UTF_8 = "UTF-8";
 
     /*
-     * This cache uses a journal file named "journal". A typical journal file
-     * looks like this:
+     * This cache uses a journal file named "journal", written in the binary
+     * format described by JournalWriter. Its records carry the same states as
+     * the lines of the text journal of version 1, which is still read once and
+     * then rewritten in the binary format. A typical text journal file looks
+     * like this:
      *     libcore.io.DiskLruCache
      *     1
      *     100
@@ -137,61 +210,312 @@ public final class LruDiskCache implements Closeable {
      *   o READ lines track accesses for LRU.
      *   o DELETE lines track entries that have been deleted.
      *
-     * The journal file is appended to as cache operations occur. The journal may
-     * occasionally be compacted by dropping redundant lines. A temporary file named
-     * "journal.tmp" will be used during compaction; that file should be deleted if
-     * it exists when the cache is opened.
+     * The journal file is appended to as cache operations occur; records are
+     * group-committed in the background, so the newest ones may be lost in a
+     * crash. Once the journal grows long, the whole index is checkpointed into
+     * a file named "index" as one CLEAN record per readable entry in LRU order,
+     * and the journal is restarted empty. Both files carry the generation of
+     * the checkpoint, so opening the cache loads the index in one bulk read and
+     * only replays the short journal written after it. Temporary files named
+     * "index.tmp" and "journal.tmp" are used while checkpointing; they should
+     * be deleted if they exist when the cache is opened.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
-    private final File journalFileBackup;
+    private final File indexFile;
+    private final File indexFileTmp;
     private final int appVersion;
     private long maxSize;
     private final int valueCount;
     private long size = 0;
-    private Writer journalWriter;
+    private JournalWriter journalWriter;
     private final LinkedHashMap<String, Entry> lruEntries =
             new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    /**
+     * Lengths of the partial values kept by interrupted edits, by file name,
+     * oldest first. They count towards {@link #size} and together may take
+     * at most {@link #MAX_PARTIAL_FRACTION} of the budget; the oldest are
+     * deleted beyond that. A partial value may belong to no entry, when the
+     * interrupted edit was creating it.
+     */
+    private final LinkedHashMap<String, Long> partialLengths = new LinkedHashMap<String, Long>();
+    private long partialSize;
     private int redundantOpCount;
+    private long checkpointGeneration;
+
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+
+    /**
+     * Entries with an expiry timestamp, earliest first. Records are never
+     * updated: an entry whose expiry changes gets a new record, and the
+     * sweeper skips records that no longer match their entry.
+     */
+    private final PriorityQueue<Expiry> expiryQueue = new PriorityQueue<Expiry>();
+    private ScheduledFuture<?> expirySweep;
+    private long expirySweepTime = Long.MAX_VALUE;
+
+    /**
+     * How long expired entries are kept before the sweeper removes them.
+     */
+    private long staleRetention;
+
+    private final DiskCacheMetrics metrics = new DiskCacheMetrics();
+
+    private AccessRecording accessRecording = AccessRecording.EVERY;
+    private final LinkedHashSet<String> bufferedReads = new LinkedHashSet<String>();
+
+    /**
+     * Hits since the last checkpoint in {@link AccessRecording#CHECKPOINT_ONLY}
+     * mode.
+     */
+    private int unrecordedHits;
+
+    /**
+     * Draws the hits to record in {@link AccessRecording#SAMPLED} mode. A
+     * random draw, unlike every n-th hit, can't fall into step with keys that
+     * are read in a fixed rotation. Used under the lock.
+     */
+    private final Random accessSampler = new Random();
+
+    /**
+     * Under {@link EvictionPolicy#TINY_LFU}, the entries admitted recently,
+     * in access order, and the number of bytes they hold. Every other entry
+     * belongs to the main region.
+     */
+    private final LinkedHashMap<String, Entry> windowEntries =
+            new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private long windowSize;
+    private FrequencySketch sketch;
+
+    /**
+     * Holds the values small enough to be packed into segment files.
+     */
+    private final PackStore packStore;
+
+    /**
+     * Values of at most this many bytes are packed; 0 stores every value in a
+     * file of its own.
+     */
+    private volatile int packThreshold;
+
+    /**
+     * The sharded cache this cache is a shard of, or null if it is standalone.
+     */
+    private ShardedLruDiskCache owner;
+
+    /**
+     * Set while a trim requested by {@link #owner} is queued, so that the
+     * size changes of other shards queue at most one job here.
+     */
+    private final AtomicBoolean trimRequested = new AtomicBoolean();
 
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
      * its sequence number is not equal to its entry's sequence number.
+     * Entries read from the journal have sequence number 0, so the first
+     * commit starts at 1.
      */
-    private long nextSequenceNumber = 0;
+    private long nextSequenceNumber = 1;
 
     /**
      * This cache uses a single background thread to evict entries.
      */
     final ThreadPoolExecutor executorService =
             new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /**
+     * Deletes the files of evicted entries, so that neither the lock nor the
+     * cleanup thread waits for the filesystem to unlink them.
+     */
+    private final ThreadPoolExecutor deleterService =
+            new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /**
+     * Evicted entries whose files are not deleted yet, by key. A new edit of
+     * such a key deletes the files itself before it may create new ones.
+     */
+    private final ConcurrentHashMap<String, PendingDelete> pendingDeletes =
+            new ConcurrentHashMap<String, PendingDelete>();
+
+    /**
+     * Once the cache exceeds {@link #maxSize}, it evicts down to this
+     * fraction of it.
+     */
+    private float lowWatermark = DEFAULT_LOW_WATERMARK;
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         public Void call() throws Exception {
             synchronized (LruDiskCache.this) {
                 if (journalWriter == null) {
                     return null; // Closed.
                 }
+                trimRequested.set(false);
                 trimToSize();
                 if (journalRebuildRequired()) {
                     rebuildJournal();
-                    redundantOpCount = 0;
+                }
+            }
+            int segmentId = packStore.compactionCandidate();
+            if (segmentId != -1) {
+                compactSegment(segmentId);
+                int nextSegmentId = packStore.compactionCandidate();
+                if (nextSegmentId != -1 && nextSegmentId != segmentId) {
+                    executorService.submit(cleanupCallable);
+                }
+            }
+            return null;
+        }
+    };
+
+    /**
+     * Removes the expired entries in batches, handing their files to the
+     * deleter thread like evicted ones.
+     */
+    private final Callable<Void> expirySweeper = new Callable<Void>() {
+        public Void call() throws Exception {
+            synchronized (LruDiskCache.this) {
+                if (journalWriter == null) {
+                    return null; // Closed.
+                }
+                expirySweep = null;
+                expirySweepTime = Long.MAX_VALUE;
+                long now = System.currentTimeMillis();
+                List<PendingDelete> expired = new ArrayList<PendingDelete>();
+                List<Expiry> editing = new ArrayList<Expiry>();
+                while (!expiryQueue.isEmpty() && expiryQueue.peek().timestamp < now - staleRetention
+                        && expired.size() < MAX_EXPIRIES_PER_SWEEP) {
+                    Expiry expiry = expiryQueue.poll();
+                    Entry entry = expiry.entry;
+                    if (!entry.readable || entry.expiryTimestamp != expiry.timestamp) {
+                        continue; // Removed, or its expiry changed.
+                    }
+                    if (entry.currentEditor != null) {
+                        editing.add(expiry);
+                        continue;
+                    }
+                    expired.add(evict(entry));
+                    metrics.expirations.incrementAndGet();
+                }
+                if (!expired.isEmpty()) {
+                    deleterService.execute(new DeleteTask(expired));
+                }
+                expiryQueue.addAll(editing);
+                if (!editing.isEmpty()) {
+                    // Retry once the edits are likely done.
+                    scheduleExpirySweep(now + 1000);
+                } else if (!expiryQueue.isEmpty()) {
+                    scheduleExpirySweep(sweepTime(expiryQueue.peek().timestamp));
+                }
+                if (journalRebuildRequired()) {
+                    executorService.submit(cleanupCallable);
+                }
+            }
+            return null;
+        }
+    };
+
+    private final Runnable expirySweepTask = new Runnable() {
+        @Override
+        public void run() {
+            executorService.submit(expirySweeper);
+        }
+    };
+
+    /**
+     * Deletes dirty files that no ongoing edit owns, value files of evicted
+     * entries, and pack segments that no entry refers to. Partial values are
+     * kept across restarts and counted into the size again. UPDATE records are
+     * group-committed, so a crash may lose the record of an edit whose dirty
+     * files had already been created; evicted files may be left behind by a
+     * crash before the deleter thread got to them.
+     */
+    private final Callable<Void> dirtyFileSweeper = new Callable<Void>() {
+        public Void call() throws Exception {
+            synchronized (LruDiskCache.this) {
+                if (journalWriter == null) {
+                    return null; // Closed.
+                }
+                Set<String> editing = new HashSet<String>();
+                for (Entry entry : lruEntries.values()) {
+                    if (entry.currentEditor != null) {
+                        for (int i = 0; i < valueCount; i++) {
+                            editing.add(entry.getDirtyFile(i).getName());
+                        }
+                    }
+                }
+                File[] files = directory.listFiles();
+                if (files == null) {
+                    return null;
+                }
+                List<File> partials = new ArrayList<File>();
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.endsWith(PARTIAL_FILE_SUFFIX)) {
+                        partials.add(file);
+                    } else if (name.endsWith(".tmp")) {
+                        if (!name.equals(JOURNAL_FILE_TEMP) && !name.equals(INDEX_FILE_TEMP)
+                                && !editing.contains(name)) {
+                            file.delete();
+                        }
+                    } else if (file.isFile() && isOrphanValueFile(name)) {
+                        file.delete();
+                    }
+                }
+                // Oldest first, so that the budget for partial values drops the oldest.
+                Collections.sort(partials, new Comparator<File>() {
+                    @Override
+                    public int compare(File a, File b) {
+                        long lhs = a.lastModified();
+                        long rhs = b.lastModified();
+                        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+                    }
+                });
+                for (File partial : partials) {
+                    addPartial(partial);
+                }
+                packStore.deleteUnusedSegments();
+                if (packStore.compactionCandidate() != -1) {
+                    executorService.submit(cleanupCallable);
                 }
             }
             return null;
         }
     };
 
+    /**
+     * Returns true if {@code name} is a value file name of no current entry.
+     * Must be called with the lock held.
+     */
+    private boolean isOrphanValueFile(String name) {
+        if (name.equals(JOURNAL_FILE) || name.equals(INDEX_FILE)
+                || name.startsWith(PackStore.SEGMENT_PREFIX)) {
+            return false;
+        }
+        for (int i = 0; i < valueCount; i++) {
+            String suffix = Integer.toString(i);
+            if (name.endsWith(suffix)) {
+                String diskKey = name.substring(0, name.length() - suffix.length());
+                if (lruEntries.containsKey(diskKey) || pendingDeletes.containsKey(diskKey)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     private LruDiskCache(File directory, int appVersion, int valueCount, long maxSize) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
-        this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+        this.indexFile = new File(directory, INDEX_FILE);
+        this.indexFileTmp = new File(directory, INDEX_FILE_TEMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.packStore = new PackStore(directory, PackStore.DEFAULT_SEGMENT_SIZE);
     }
 
     /**
@@ -212,26 +536,25 @@ public final class LruDiskCache implements Closeable {
             throw new IllegalArgumentException("valueCount <= 0");
         }
 
-        // If a bkp file exists, use it instead.
-        File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
-        if (backupFile.exists()) {
-            File journalFile = new File(directory, JOURNAL_FILE);
-            // If journal file also exists just delete backup file.
-            if (journalFile.exists()) {
-                backupFile.delete();
-            } else {
-                renameTo(backupFile, journalFile, false);
-            }
-        }
-
         // Prefer to pick up where we left off.
         LruDiskCache cache = new LruDiskCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
+        if (cache.journalFile.exists() || cache.indexFile.exists()) {
             try {
-                cache.readJournal();
-                cache.processJournal();
-                cache.journalWriter = new BufferedWriter(
-                        new OutputStreamWriter(new FileOutputStream(cache.journalFile, true), US_ASCII));
+                List<Entry> editedEntries = new ArrayList<Entry>();
+                cache.readIndex();
+                boolean rebuildRequired = cache.readJournal(editedEntries);
+                cache.processJournal(editedEntries);
+                if (rebuildRequired) {
+                    cache.rebuildJournal();
+                } else {
+                    cache.journalWriter = JournalWriter.append(cache.journalFile, JOURNAL_FLUSH_INTERVAL_MILLIS);
+                }
+                cache.executorService.submit(cache.dirtyFileSweeper);
+                synchronized (cache) {
+                    if (!cache.expiryQueue.isEmpty()) {
+                        cache.scheduleExpirySweep(cache.sweepTime(cache.expiryQueue.peek().timestamp));
+                    }
+                }
                 return cache;
             } catch (Throwable journalIsCorrupt) {
                 cache.delete();
@@ -246,7 +569,131 @@ public final class LruDiskCache implements Closeable {
         return cache;
     }
 
-    private void readJournal() throws IOException {
+    /**
+     * Loads the last index checkpoint, if there is one, into {@link #lruEntries}.
+     */
+    private void readIndex() throws IOException {
+        if (!indexFile.exists()) {
+            return;
+        }
+        JournalReader reader = JournalReader.open(indexFile, valueCount);
+        long generation = reader.readHeader(JournalWriter.INDEX_MAGIC, appVersion);
+        if (generation == -1) {
+            throw new IOException("unexpected index header");
+        }
+        while (reader.next()) {
+            if (reader.tag != JournalWriter.CLEAN) {
+                throw new IOException("unexpected index record: " + (char) reader.tag);
+            }
+            applyJournalRecord(reader.tag, reader.key, reader.expiryTimestamp, reader.lengths, reader.addresses, null);
+        }
+        checkpointGeneration = generation;
+    }
+
+    /**
+     * Replays the journal written after the last checkpoint. Entries left in
+     * the UPDATE state are added to {@code editedEntries}. Returns true if a
+     * new checkpoint must be written because the journal is missing, stale,
+     * a text journal of version 1 or because its last record was cut off.
+     */
+    private boolean readJournal(List<Entry> editedEntries) throws IOException {
+        if (!journalFile.exists()) {
+            return true;
+        }
+        JournalReader reader = JournalReader.open(journalFile, valueCount);
+        long generation = reader.readHeader(JournalWriter.JOURNAL_MAGIC, appVersion);
+        if (generation == -1) {
+            readTextJournal(editedEntries);
+            return true;
+        }
+        if (generation < checkpointGeneration) {
+            // Checkpointing stopped after the index was written; it already holds these records.
+            return true;
+        }
+        if (generation > checkpointGeneration) {
+            throw new IOException("journal of generation " + generation + " without its index");
+        }
+
+        int recordCount = 0;
+        boolean truncated = false;
+        try {
+            while (reader.next()) {
+                applyJournalRecord(reader.tag, reader.key, reader.expiryTimestamp, reader.lengths, reader.addresses,
+                        editedEntries);
+                recordCount++;
+            }
+        } catch (EOFException endOfJournal) {
+            truncated = true;
+        }
+        redundantOpCount = recordCount;
+        return truncated;
+    }
+
+    /**
+     * Applies one journal record to {@link #lruEntries}, {@link #size} and the
+     * live bytes of the pack segments. {@code addresses} may be null for
+     * records whose values all have files of their own.
+     */
+    private void applyJournalRecord(byte tag, String diskKey, long expiryTimestamp, long[] lengths,
+                                    long[] addresses, List<Entry> editedEntries) {
+        if (tag == JournalWriter.DELETE) {
+            Entry removed = lruEntries.remove(diskKey);
+            if (removed != null) {
+                removed.currentEditor = null;
+                if (removed.readable) {
+                    for (int i = 0; i < valueCount; i++) {
+                        size -= removed.lengths[i];
+                        if (removed.addresses[i] != 0) {
+                            packStore.release(removed.addresses[i], removed.lengths[i], false);
+                        }
+                    }
+                    removed.readable = false;
+                }
+            }
+            return;
+        }
+
+        Entry entry = lruEntries.get(diskKey);
+        if (tag == JournalWriter.READ) {
+            // Getting the entry moved it to the head; a buffered read may name a removed entry.
+            return;
+        }
+        if (entry == null) {
+            entry = new Entry(diskKey);
+            lruEntries.put(diskKey, entry);
+        }
+
+        if (tag == JournalWriter.CLEAN) {
+            for (int i = 0; i < valueCount; i++) {
+                if (entry.readable) {
+                    size -= entry.lengths[i];
+                    if (entry.addresses[i] != 0) {
+                        packStore.release(entry.addresses[i], entry.lengths[i], false);
+                    }
+                }
+                entry.lengths[i] = lengths[i];
+                entry.addresses[i] = addresses != null ? addresses[i] : 0;
+                if (entry.addresses[i] != 0) {
+                    packStore.addLive(entry.addresses[i], lengths[i]);
+                }
+                size += lengths[i];
+            }
+            entry.readable = true;
+            entry.currentEditor = null;
+            entry.expiryTimestamp = expiryTimestamp;
+            if (expiryTimestamp != Long.MAX_VALUE) {
+                expiryQueue.add(new Expiry(entry));
+            }
+        } else if (tag == JournalWriter.UPDATE) {
+            entry.currentEditor = new Editor(entry);
+            editedEntries.add(entry);
+        }
+    }
+
+    /**
+     * Reads a text journal of version 1.
+     */
+    private void readTextJournal(List<Entry> editedEntries) throws IOException {
         StrictLineReader reader = null;
         try {
             reader = new StrictLineReader(new FileInputStream(journalFile));
@@ -267,7 +714,7 @@ public final class LruDiskCache implements Closeable {
             int lineCount = 0;
             while (true) {
                 try {
-                    readJournalLine(reader.readLine());
+                    readJournalLine(reader.readLine(), editedEntries);
                     lineCount++;
                 } catch (EOFException endOfJournal) {
                     break;
@@ -279,7 +726,7 @@ public final class LruDiskCache implements Closeable {
         }
     }
 
-    private void readJournalLine(String line) throws IOException {
+    private void readJournalLine(String line, List<Entry> editedEntries) throws IOException {
         int firstSpace = line.indexOf(' ');
         char lineTag = 0;
         if (firstSpace == 1) {
@@ -293,119 +740,179 @@ public final class LruDiskCache implements Closeable {
         final String diskKey;
         if (secondSpace == -1) {
             diskKey = line.substring(keyBegin);
-            if (lineTag == DELETE) {
-                lruEntries.remove(diskKey);
-                return;
-            }
         } else {
             diskKey = line.substring(keyBegin, secondSpace);
         }
 
-        Entry entry = lruEntries.get(diskKey);
-        if (entry == null) {
-            entry = new Entry(diskKey);
-            lruEntries.put(diskKey, entry);
-        }
-
+        long expiryTimestamp = Long.MAX_VALUE;
+        long[] lengths = null;
         switch (lineTag) {
             case CLEAN: {
-                entry.readable = true;
-                entry.currentEditor = null;
                 String[] parts = line.substring(secondSpace + 1).split(" ");
-                if (parts.length > 0) {
-                    try {
-                        if (parts[0].charAt(0) == EXPIRY_PREFIX) {
-                            entry.expiryTimestamp = Long.valueOf(parts[0].substring(1));
-                            entry.setLengths(parts, 1);
-                        } else {
-                            entry.expiryTimestamp = Long.MAX_VALUE;
-                            entry.setLengths(parts, 0);
-                        }
-                    } catch (Throwable e) {
-                        throw new IOException("unexpected journal line: " + line);
+                try {
+                    if (parts[0].charAt(0) == EXPIRY_PREFIX) {
+                        expiryTimestamp = Long.valueOf(parts[0].substring(1));
+                        lengths = parseLengths(parts, 1);
+                    } else {
+                        lengths = parseLengths(parts, 0);
                     }
+                } catch (Throwable e) {
+                    throw new IOException("unexpected journal line: " + line);
                 }
                 break;
             }
-            case UPDATE: {
-                entry.currentEditor = new Editor(entry);
+            case DELETE: {
+                if (secondSpace != -1) {
+                    throw new IOException("unexpected journal line: " + line);
+                }
                 break;
             }
+            case UPDATE:
             case READ: {
-                // This work was already done by calling lruEntries.get().
                 break;
             }
             default: {
                 throw new IOException("unexpected journal line: " + line);
             }
         }
+        applyJournalRecord((byte) lineTag, diskKey, expiryTimestamp, lengths, null, editedEntries);
+    }
+
+    /**
+     * Parses lengths written as decimal numbers like "10123".
+     */
+    private long[] parseLengths(String[] strings, int startIndex) throws IOException {
+        if ((strings.length - startIndex) != valueCount) {
+            throw new IOException("unexpected journal line: " + java.util.Arrays.toString(strings));
+        }
+        long[] lengths = new long[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            lengths[i] = Long.parseLong(strings[i + startIndex]);
+        }
+        return lengths;
     }
 
     /**
-     * Computes the initial size and collects garbage as a part of opening the
-     * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     * Collects garbage as a part of opening the cache. Entries left in the
+     * UPDATE state are assumed to be inconsistent and will be deleted; the
+     * size of every other entry was already counted while reading.
      */
-    private void processJournal() throws IOException {
+    private void processJournal(List<Entry> editedEntries) throws IOException {
         deleteIfExists(journalFileTmp);
-        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
-            Entry entry = i.next();
+        deleteIfExists(indexFileTmp);
+        for (Entry entry : editedEntries) {
             if (entry.currentEditor == null) {
-                for (int t = 0; t < valueCount; t++) {
-                    size += entry.lengths[t];
+                continue; // Completed by a later record.
+            }
+            entry.currentEditor = null;
+            for (int t = 0; t < valueCount; t++) {
+                if (entry.readable) {
+                    size -= entry.lengths[t];
                 }
-            } else {
-                entry.currentEditor = null;
-                for (int t = 0; t < valueCount; t++) {
+                if (entry.addresses[t] != 0) {
+                    packStore.release(entry.addresses[t], entry.lengths[t], false);
+                } else {
                     deleteIfExists(entry.getCleanFile(t));
-                    deleteIfExists(entry.getDirtyFile(t));
                 }
-                i.remove();
+                deleteIfExists(entry.getDirtyFile(t));
             }
+            entry.readable = false;
+            lruEntries.remove(entry.diskKey);
         }
     }
 
     /**
-     * Creates a new journal that omits redundant information. This replaces the
-     * current journal if it exists.
+     * Writes a checkpoint of the index and restarts the journal empty, apart
+     * from the edits in progress. This replaces the current index and journal
+     * if they exist. Package-private for the benchmarks.
+     * <p/>
+     * <p>The current journal keeps receiving records until the new index and
+     * journal are in place, so if writing them fails, the cache goes on as
+     * before. Only if the new journal can't replace the current one after the
+     * new index did is the cache closed, because the current journal is stale
+     * from then on.
      */
-    private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            IOUtils.closeQuietly(journalWriter);
+    synchronized void rebuildJournal() throws IOException {
+        long start = System.nanoTime();
+        long generation = checkpointGeneration + 1;
+        int editCount;
+        try {
+            writeIndex(indexFileTmp, generation);
+            editCount = writeEdits(journalFileTmp, generation);
+            renameTo(indexFileTmp, indexFile);
+        } catch (IOException e) {
+            indexFileTmp.delete();
+            journalFileTmp.delete();
+            throw e;
+        }
+        checkpointGeneration = generation;
+
+        // The new index holds everything the current journal does, including its pending records.
+        // From here on a crash leaves a stale journal, which the next open ignores.
+        JournalWriter staleWriter = journalWriter;
+        journalWriter = null;
+        if (staleWriter != null) {
+            staleWriter.discard();
         }
-
-        Writer writer = null;
         try {
-            writer = new BufferedWriter(
-                    new OutputStreamWriter(new FileOutputStream(journalFileTmp), US_ASCII));
-            writer.write(MAGIC);
-            writer.write("\n");
-            writer.write(VERSION);
-            writer.write("\n");
-            writer.write(Integer.toString(appVersion));
-            writer.write("\n");
-            writer.write(Integer.toString(valueCount));
-            writer.write("\n");
-            writer.write("\n");
+            renameTo(journalFileTmp, journalFile);
+            journalWriter = JournalWriter.append(journalFile, JOURNAL_FLUSH_INTERVAL_MILLIS);
+        } catch (IOException e) {
+            // Records appended to the stale journal would be lost; fail from now on instead.
+            releaseResources();
+            throw e;
+        }
+        redundantOpCount = editCount;
+        // The checkpoint saved the current LRU order.
+        bufferedReads.clear();
+        if (accessRecording == AccessRecording.CHECKPOINT_ONLY) {
+            unrecordedHits = 0;
+        }
+        metrics.journalRebuilds.incrementAndGet();
+        metrics.journalRebuildTime.recordSince(start);
+    }
 
+    /**
+     * Writes every readable entry to a new index {@code file} of
+     * {@code generation}.
+     */
+    private void writeIndex(File file, long generation) throws IOException {
+        JournalWriter writer = null;
+        try {
+            writer = JournalWriter.create(file, JournalWriter.INDEX_MAGIC, appVersion, valueCount,
+                    generation, JOURNAL_FLUSH_INTERVAL_MILLIS);
             for (Entry entry : lruEntries.values()) {
-                if (entry.currentEditor != null) {
-                    writer.write(UPDATE + " " + entry.diskKey + '\n');
-                } else {
-                    writer.write(CLEAN + " " + entry.diskKey + " " + EXPIRY_PREFIX + entry.expiryTimestamp + entry.getLengths() + '\n');
+                if (entry.readable) {
+                    writer.writeClean(entry.diskKey, entry.expiryTimestamp, entry.lengths, entry.addresses);
                 }
             }
+            writer.close();
         } finally {
             IOUtils.closeQuietly(writer);
         }
+    }
 
-        if (journalFile.exists()) {
-            renameTo(journalFile, journalFileBackup, true);
+    /**
+     * Writes a new journal {@code file} of {@code generation} that only holds
+     * the edits in progress, and returns their number.
+     */
+    private int writeEdits(File file, long generation) throws IOException {
+        int editCount = 0;
+        JournalWriter writer = null;
+        try {
+            writer = JournalWriter.create(file, JournalWriter.JOURNAL_MAGIC, appVersion, valueCount,
+                    generation, JOURNAL_FLUSH_INTERVAL_MILLIS);
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor != null) {
+                    writer.writeUpdate(entry.diskKey);
+                    editCount++;
+                }
+            }
+            writer.close();
+        } finally {
+            IOUtils.closeQuietly(writer);
         }
-        renameTo(journalFileTmp, journalFile, false);
-        journalFileBackup.delete();
-
-        journalWriter = new BufferedWriter(
-                new OutputStreamWriter(new FileOutputStream(journalFile, true), US_ASCII));
+        return editCount;
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -414,17 +921,34 @@ public final class LruDiskCache implements Closeable {
         }
     }
 
-    private static void renameTo(File from, File to, boolean deleteDestination) throws IOException {
-        if (deleteDestination) {
-            deleteIfExists(to);
-        }
+    /**
+     * Replaces {@code to} with {@code from} in one atomic rename, so that a
+     * crash leaves either the old or the new file, never neither.
+     */
+    private static void renameTo(File from, File to) throws IOException {
         if (!from.renameTo(to)) {
-            throw new IOException();
+            throw new IOException("failed to rename " + from + " to " + to);
         }
     }
 
-    public synchronized long getExpiryTimestamp(String key) throws IOException {
-        String diskKey = fileNameGenerator.generate(key);
+    /**
+     * Hashes {@code key} with this cache's {@link FileNameGenerator}. Pass the
+     * result to the {@link CacheKey} overloads to avoid hashing the key again
+     * on every operation.
+     */
+    public CacheKey newKey(String key) {
+        return new CacheKey(key, fileNameGenerator.generate(key));
+    }
+
+    public long getExpiryTimestamp(String key) throws IOException {
+        return getExpiryTimestampByDiskKey(fileNameGenerator.generate(key));
+    }
+
+    public long getExpiryTimestamp(CacheKey key) throws IOException {
+        return getExpiryTimestampByDiskKey(key.getDiskName());
+    }
+
+    private synchronized long getExpiryTimestampByDiskKey(String diskKey) throws IOException {
         checkNotClosed();
         Entry entry = lruEntries.get(diskKey);
         if (entry == null) {
@@ -434,87 +958,218 @@ public final class LruDiskCache implements Closeable {
         }
     }
 
-    public File getCacheFile(String key, int index) {
-        String diskKey = fileNameGenerator.generate(key);
-        File result = new File(this.directory, diskKey + "" + index);
-        if (result.exists()) {
-            return result;
-        } else {
-            try {
-                this.remove(key);
-            } catch (IOException ignore) {
-            }
-            return null;
-        }
+    /**
+     * Returns true if a readable, unexpired entry for {@code key} exists.
+     * Unlike {@link #get} this opens no files and doesn't count as an access,
+     * so it neither reorders the LRU queue nor adds to the entry's frequency.
+     */
+    public boolean contains(String key) throws IOException {
+        return containsDiskKey(fileNameGenerator.generate(key));
     }
 
-    public Snapshot get(String key) throws IOException {
-        String diskKey = fileNameGenerator.generate(key);
-        return getByDiskKey(diskKey);
+    public boolean contains(CacheKey key) throws IOException {
+        return containsDiskKey(key.getDiskName());
     }
 
-    /**
-     * Returns a snapshot of the entry named {@code diskKey}, or null if it doesn't
-     * exist is not currently readable. If a value is returned, it is moved to
-     * the head of the LRU queue.
-     */
-    private synchronized Snapshot getByDiskKey(String diskKey) throws IOException {
+    private synchronized boolean containsDiskKey(String diskKey) throws IOException {
         checkNotClosed();
         Entry entry = lruEntries.get(diskKey);
-        if (entry == null) {
+        return entry != null && entry.readable && entry.expiryTimestamp >= System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the file holding the value at {@code index}, or null if there is
+     * no such value or the value is packed into a segment file.
+     */
+    public File getCacheFile(String key, int index) {
+        return getCacheFileByDiskKey(fileNameGenerator.generate(key), index);
+    }
+
+    public File getCacheFile(CacheKey key, int index) {
+        return getCacheFileByDiskKey(key.getDiskName(), index);
+    }
+
+    private File getCacheFileByDiskKey(String diskKey, int index) {
+        synchronized (this) {
+            Entry entry = lruEntries.get(diskKey);
+            if (entry != null && entry.addresses[index] != 0) {
+                return null;
+            }
+        }
+        if (pendingDeletes.containsKey(diskKey)) {
             return null;
         }
-
-        if (!entry.readable) {
+        File result = new File(this.directory, diskKey + "" + index);
+        if (result.exists()) {
+            return result;
+        } else {
+            try {
+                removeByDiskKey(diskKey);
+            } catch (IOException ignore) {
+            }
             return null;
         }
+    }
 
-        // If expired, delete the entry.
-        if (entry.expiryTimestamp < System.currentTimeMillis()) {
-            for (int i = 0; i < valueCount; i++) {
-                File file = entry.getCleanFile(i);
-                if (file.exists() && !file.delete()) {
-                    throw new IOException("failed to delete " + file);
+    public Snapshot get(String key) throws IOException {
+        String diskKey = fileNameGenerator.generate(key);
+        return getByDiskKey(diskKey);
+    }
+
+    public Snapshot get(CacheKey key) throws IOException {
+        return getByDiskKey(key.getDiskName());
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code diskKey}, or null if it doesn't
+     * exist is not currently readable. If a value is returned, it is moved to
+     * the head of the LRU queue.
+     * <p/>
+     * <p>The lock is only held to look the entry up and to validate the
+     * snapshot: the streams are opened in between, outside of the lock. They
+     * belong to a single published edit if the entry still has the sequence
+     * number and value addresses captured before opening them, since every
+     * commit, removal and compaction changes one of these under the lock.
+     * Otherwise the streams are closed and the lookup is retried.
+     */
+    private Snapshot getByDiskKey(String diskKey) throws IOException {
+        for (int attempt = 0; attempt < MAX_SNAPSHOT_ATTEMPTS; attempt++) {
+            Entry entry;
+            long sequenceNumber;
+            long expiryTimestamp;
+            long[] lengths;
+            long[] addresses;
+            long lockStart = System.nanoTime();
+            synchronized (this) {
+                metrics.lockWait.recordSince(lockStart);
+                checkNotClosed();
+                if (attempt == 0 && sketch != null) {
+                    sketch.increment(diskKey);
                 }
-                size -= entry.lengths[i];
-                entry.lengths[i] = 0;
+                entry = lruEntries.get(diskKey);
+                if (entry == null || !entry.readable) {
+                    metrics.misses.incrementAndGet();
+                    return null;
+                }
+                if (entry.windowCharge >= 0) {
+                    windowEntries.get(diskKey);
+                }
+
+                // An expired entry is a miss; the expiry sweeper removes it.
+                if (entry.expiryTimestamp < System.currentTimeMillis()) {
+                    scheduleExpirySweep(sweepTime(entry.expiryTimestamp));
+                    metrics.misses.incrementAndGet();
+                    return null;
+                }
+
+                sequenceNumber = entry.sequenceNumber;
+                expiryTimestamp = entry.expiryTimestamp;
+                lengths = entry.lengths.clone();
+                addresses = entry.addresses.clone();
             }
-            redundantOpCount++;
-            journalWriter.append(DELETE + " " + diskKey + '\n');
-            lruEntries.remove(diskKey);
-            if (journalRebuildRequired()) {
-                executorService.submit(cleanupCallable);
+
+            FileInputStream[] ins = openValues(entry, lengths, addresses);
+
+            synchronized (this) {
+                if (journalWriter != null
+                        && entry.readable
+                        && entry.sequenceNumber == sequenceNumber
+                        && Arrays.equals(entry.addresses, addresses)) {
+                    if (ins == null) {
+                        // A file must have been deleted manually!
+                        metrics.misses.incrementAndGet();
+                        return null;
+                    }
+                    recordAccess(diskKey);
+                    metrics.hits.incrementAndGet();
+                    return new Snapshot(diskKey, sequenceNumber, expiryTimestamp, ins, lengths, addresses);
+                }
             }
-            return null;
+            closeAll(ins);
+        }
+        metrics.misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Records a hit of the entry named {@code diskKey} in the journal as the
+     * access recording mode asks, so that the LRU order survives a restart.
+     */
+    private void recordAccess(String diskKey) {
+        switch (accessRecording) {
+            case EVERY:
+                writeRead(diskKey);
+                break;
+            case SAMPLED:
+                if (accessSampler.nextInt(ACCESS_SAMPLE_INTERVAL) == 0) {
+                    writeRead(diskKey);
+                }
+                break;
+            case BUFFERED:
+                // Re-adding moves the key to the end, so the buffer is in access order.
+                bufferedReads.remove(diskKey);
+                bufferedReads.add(diskKey);
+                if (bufferedReads.size() >= MAX_BUFFERED_READS) {
+                    flushBufferedReads();
+                }
+                break;
+            case CHECKPOINT_ONLY:
+                unrecordedHits++;
+                break;
+        }
+    }
+
+    private void writeRead(String diskKey) {
+        redundantOpCount++;
+        journalWriter.writeRead(diskKey);
+        if (journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    /**
+     * Writes one READ record per key buffered since the last call, in the
+     * order the keys were last hit.
+     */
+    private void flushBufferedReads() {
+        if (bufferedReads.isEmpty()) {
+            return;
         }
+        for (String diskKey : bufferedReads) {
+            journalWriter.writeRead(diskKey);
+        }
+        redundantOpCount += bufferedReads.size();
+        bufferedReads.clear();
+        if (journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+    }
 
-        // Open all streams eagerly to guarantee that we see a single published
-        // snapshot. If we opened streams lazily then the streams could come
-        // from different edits.
+    /**
+     * Opens the stream of every value, or returns null if a file is missing.
+     */
+    private FileInputStream[] openValues(Entry entry, long[] lengths, long[] addresses) throws IOException {
         FileInputStream[] ins = new FileInputStream[valueCount];
         try {
             for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+                ins[i] = entry.newInputStream(i, addresses[i], lengths[i]);
             }
+            return ins;
         } catch (FileNotFoundException e) {
-            // A file must have been deleted manually!
-            for (int i = 0; i < valueCount; i++) {
-                if (ins[i] != null) {
-                    IOUtils.closeQuietly(ins[i]);
-                } else {
-                    break;
-                }
-            }
+            closeAll(ins);
             return null;
         }
+    }
 
-        redundantOpCount++;
-        journalWriter.append(READ + " " + diskKey + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+    private static void closeAll(FileInputStream[] ins) {
+        if (ins == null) {
+            return;
+        }
+        for (FileInputStream in : ins) {
+            if (in != null) {
+                IOUtils.closeQuietly(in);
+            }
         }
-
-        return new Snapshot(diskKey, entry.sequenceNumber, ins, entry.lengths);
     }
 
     /**
@@ -526,7 +1181,23 @@ public final class LruDiskCache implements Closeable {
         return editByDiskKey(diskKey, ANY_SEQUENCE_NUMBER);
     }
 
-    private synchronized Editor editByDiskKey(String diskKey, long expectedSequenceNumber) throws IOException {
+    public Editor edit(CacheKey key) throws IOException {
+        return editByDiskKey(key.getDiskName(), ANY_SEQUENCE_NUMBER);
+    }
+
+    private Editor editByDiskKey(String diskKey, long expectedSequenceNumber) throws IOException {
+        long lockStart = System.nanoTime();
+        synchronized (this) {
+            metrics.lockWait.recordSince(lockStart);
+            return editLocked(diskKey, expectedSequenceNumber);
+        }
+    }
+
+    /**
+     * Does the work of {@link #editByDiskKey}, which records the wait for the
+     * lock. Must be called with the lock held.
+     */
+    private Editor editLocked(String diskKey, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
         Entry entry = lruEntries.get(diskKey);
         if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER &&
@@ -534,6 +1205,7 @@ public final class LruDiskCache implements Closeable {
             return null; // Snapshot is stale.
         }
         if (entry == null) {
+            finishPendingDelete(diskKey);
             entry = new Entry(diskKey);
             lruEntries.put(diskKey, entry);
         } else if (entry.currentEditor != null) {
@@ -543,12 +1215,31 @@ public final class LruDiskCache implements Closeable {
         Editor editor = new Editor(entry);
         entry.currentEditor = editor;
 
-        // Flush the journal before creating files to prevent file leaks.
-        journalWriter.write(UPDATE + " " + diskKey + '\n');
-        journalWriter.flush();
+        // Dirty files of an edit whose record is lost in a crash are swept on the next open.
+        journalWriter.writeUpdate(diskKey);
+        redundantOpCount++;
         return editor;
     }
 
+    /**
+     * Makes this cache a shard of {@code owner}, which then tracks its size
+     * against the budget shared by all shards.
+     */
+    void attachTo(ShardedLruDiskCache owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Queues a job to trim this cache if it holds more than its share of the
+     * budget of its sharded cache. Does nothing while such a job is already
+     * queued.
+     */
+    void requestTrim() {
+        if (trimRequested.compareAndSet(false, true)) {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
     /**
      * Returns the directory where this cache stores its data.
      */
@@ -573,6 +1264,170 @@ public final class LruDiskCache implements Closeable {
         executorService.submit(cleanupCallable);
     }
 
+    /**
+     * How the cache picks entries to evict once it is over its budget.
+     */
+    public enum EvictionPolicy {
+        /**
+         * Evicts the least recently used entry.
+         */
+        LRU,
+
+        /**
+         * Window TinyLFU: new entries enter a small LRU window holding 1% of
+         * the budget. An entry leaving the window is only kept if it was
+         * requested more often than the least recently used entry of the
+         * main region, as estimated by a {@link FrequencySketch} of recent
+         * requests, hits and misses alike; otherwise it is evicted instead.
+         * A scan through one-off images therefore only churns the window
+         * rather than flushing the frequently used entries. Frequencies are
+         * not persisted, so after {@link #open} all entries start in the main
+         * region with no history.
+         */
+        TINY_LFU
+    }
+
+    /**
+     * How cache hits are recorded in the journal. The journal is only there
+     * to restore the LRU order after a restart, and every checkpoint saves
+     * the current order anyway; the modes trade the precision of the order
+     * restored after a crash for fewer records and checkpoints.
+     */
+    public enum AccessRecording {
+        /**
+         * Writes a READ record for every hit.
+         */
+        EVERY,
+
+        /**
+         * Writes a READ record for a hit with a probability of one in
+         * {@link #ACCESS_SAMPLE_INTERVAL}. Frequently used entries are still
+         * recorded often.
+         */
+        SAMPLED,
+
+        /**
+         * Collects the keys of hits and writes one READ record per distinct
+         * key once {@link #MAX_BUFFERED_READS} are collected, and on
+         * {@link #flush}, {@link #close} and checkpoints. Repeated hits of the
+         * same key cost a single record.
+         */
+        BUFFERED,
+
+        /**
+         * Writes no READ records. The order is saved by checkpoints only, and
+         * {@link #close} writes a checkpoint if there were hits since the last one.
+         */
+        CHECKPOINT_ONLY
+    }
+
+    public synchronized AccessRecording getAccessRecording() {
+        return accessRecording;
+    }
+
+    public synchronized void setAccessRecording(AccessRecording accessRecording) {
+        if (accessRecording == null) {
+            throw new NullPointerException("accessRecording == null");
+        }
+        if (journalWriter != null) {
+            flushBufferedReads();
+        }
+        this.accessRecording = accessRecording;
+        unrecordedHits = 0;
+    }
+
+    public synchronized EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public synchronized void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        if (evictionPolicy == null) {
+            throw new NullPointerException("evictionPolicy == null");
+        }
+        if (evictionPolicy == this.evictionPolicy) {
+            return;
+        }
+        this.evictionPolicy = evictionPolicy;
+        for (Entry entry : windowEntries.values()) {
+            entry.windowCharge = -1;
+        }
+        windowEntries.clear();
+        windowSize = 0;
+        if (evictionPolicy == EvictionPolicy.TINY_LFU) {
+            sketch = new FrequencySketch();
+            sketch.ensureCapacity(Math.max(lruEntries.size(), 256));
+        } else {
+            sketch = null;
+        }
+    }
+
+    public synchronized float getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Sets the fraction of the max size that eviction brings the cache back
+     * to once it exceeds the max size. A lower watermark evicts in larger,
+     * rarer batches. Defaults to {@link #DEFAULT_LOW_WATERMARK}.
+     */
+    public synchronized void setLowWatermark(float lowWatermark) {
+        if (!(lowWatermark > 0 && lowWatermark <= 1)) {
+            throw new IllegalArgumentException("lowWatermark: " + lowWatermark);
+        }
+        this.lowWatermark = lowWatermark;
+    }
+
+    public synchronized long getStaleRetention() {
+        return staleRetention;
+    }
+
+    /**
+     * Keeps expired entries for {@code staleRetention} milliseconds before the
+     * sweeper removes them. They are misses for {@link #get} and
+     * {@link #contains} meanwhile, but an {@link Editor} can still read their
+     * values, e.g. to revalidate them and then commit a new expiry without
+     * rewriting them. They are evicted like any other entry. Defaults to 0.
+     */
+    public synchronized void setStaleRetention(long staleRetention) {
+        if (staleRetention < 0) {
+            throw new IllegalArgumentException("staleRetention < 0");
+        }
+        this.staleRetention = staleRetention;
+        if (!expiryQueue.isEmpty()) {
+            scheduleExpirySweep(sweepTime(expiryQueue.peek().timestamp));
+        }
+    }
+
+    /**
+     * Returns the size in bytes up to which values are packed into shared
+     * segment files, or 0 if every value is stored in a file of its own.
+     */
+    public int getPackThreshold() {
+        return packThreshold;
+    }
+
+    /**
+     * Packs values of at most {@code packThreshold} bytes written by later
+     * edits into shared segment files rather than one file each, which saves
+     * the file creation, rename and delete of every small image. Use 0 to turn
+     * packing off. Values of a pack segment are streamed from an offset of the
+     * segment, so {@link #getCacheFile} returns null for them.
+     */
+    public void setPackThreshold(int packThreshold) {
+        if (packThreshold < 0 || packThreshold > PackStore.DEFAULT_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("packThreshold: " + packThreshold);
+        }
+        this.packThreshold = packThreshold;
+    }
+
+    /**
+     * Returns a snapshot of the metrics of this cache, which later operations
+     * don't change.
+     */
+    public DiskCacheMetrics getMetrics() {
+        return metrics.snapshot();
+    }
+
     /**
      * Returns the number of bytes currently being used to store the values in
      * this cache. This may be greater than the max size if a background
@@ -595,7 +1450,7 @@ public final class LruDiskCache implements Closeable {
                     editor.abort();
                     throw new IllegalStateException("Newly created entry didn't create value for index " + i);
                 }
-                if (!entry.getDirtyFile(i).exists()) {
+                if (editor.packedAddresses[i] == 0 && !entry.getDirtyFile(i).exists()) {
                     editor.abort();
                     return;
                 }
@@ -603,15 +1458,34 @@ public final class LruDiskCache implements Closeable {
         }
 
         for (int i = 0; i < valueCount; i++) {
+            long packedAddress = editor.packedAddresses[i];
+            if (packedAddress != 0) {
+                if (success) {
+                    releaseValue(entry, i);
+                    long newLength = editor.packedLengths[i];
+                    packStore.commitAppend(packedAddress, newLength);
+                    entry.addresses[i] = packedAddress;
+                    adjustSize(newLength - entry.lengths[i]);
+                    entry.lengths[i] = newLength;
+                    metrics.bytesWritten.addAndGet(newLength);
+                } else {
+                    packStore.discardAppend(packedAddress);
+                }
+                continue;
+            }
             File dirty = entry.getDirtyFile(i);
             if (success) {
                 if (dirty.exists()) {
+                    if (entry.addresses[i] != 0) {
+                        releaseValue(entry, i);
+                    }
                     File clean = entry.getCleanFile(i);
                     dirty.renameTo(clean);
                     long oldLength = entry.lengths[i];
                     long newLength = clean.length();
                     entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+                    adjustSize(newLength - oldLength);
+                    metrics.bytesWritten.addAndGet(newLength);
                 }
             } else {
                 deleteIfExists(dirty);
@@ -621,30 +1495,243 @@ public final class LruDiskCache implements Closeable {
         redundantOpCount++;
         entry.currentEditor = null;
         if (entry.readable | success) {
+            boolean admitted = !entry.readable;
             entry.readable = true;
-            journalWriter.write(CLEAN + " " + entry.diskKey + " " + EXPIRY_PREFIX + entry.expiryTimestamp + entry.getLengths() + '\n');
+            if (success && editor.expiryTimestamp != entry.expiryTimestamp) {
+                entry.expiryTimestamp = editor.expiryTimestamp;
+                scheduleExpiry(entry);
+            }
+            journalWriter.writeClean(entry.diskKey, entry.expiryTimestamp, entry.lengths, entry.addresses);
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
+                if (evictionPolicy == EvictionPolicy.TINY_LFU) {
+                    chargeWindow(entry, admitted);
+                }
             }
         } else {
             lruEntries.remove(entry.diskKey);
-            journalWriter.write(DELETE + " " + entry.diskKey + '\n');
+            journalWriter.writeDelete(entry.diskKey);
         }
-        journalWriter.flush();
 
-        if (size > maxSize || journalRebuildRequired()) {
+        if (success) {
+            // Values kept by an interrupted edit are stale now.
+            editor.discardPartial();
+        }
+
+        if (size > maxSize || overShardBudget() || journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
     }
 
     /**
-     * We only rebuild the journal when it will halve the size of the journal
-     * and eliminate at least 2000 ops.
+     * Releases the storage of the value at {@code i} without touching the
+     * size: a packed value leaves its segment, a file of its own is deleted.
+     */
+    private void releaseValue(Entry entry, int i) throws IOException {
+        if (entry.addresses[i] != 0) {
+            if (packStore.release(entry.addresses[i], entry.lengths[i], true)) {
+                executorService.submit(cleanupCallable);
+            }
+            entry.addresses[i] = 0;
+        } else {
+            deleteIfExists(entry.getCleanFile(i));
+        }
+    }
+
+    /**
+     * Deletes the value at {@code i} of a removed or expired entry.
+     */
+    private void deleteValue(Entry entry, int i) throws IOException {
+        if (entry.addresses[i] != 0) {
+            releaseValue(entry, i);
+        } else {
+            File file = entry.getCleanFile(i);
+            if (file.exists() && !file.delete()) {
+                throw new IOException("failed to delete " + file);
+            }
+        }
+        adjustSize(-entry.lengths[i]);
+        entry.lengths[i] = 0;
+    }
+
+    /**
+     * Moves the live values of pack segment {@code segmentId} to the active
+     * segment, so that the segment is deleted once nothing refers to it.
+     * Values are copied outside of the lock; a value replaced or removed in the
+     * meantime keeps its new state and its copy is discarded.
+     */
+    private void compactSegment(int segmentId) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        synchronized (this) {
+            if (journalWriter == null) {
+                return;
+            }
+            for (Entry entry : lruEntries.values()) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (entry.addresses[i] != 0 && PackStore.segmentOf(entry.addresses[i]) == segmentId) {
+                        entries.add(entry);
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (Entry entry : entries) {
+            long[] oldAddresses;
+            long[] lengths;
+            synchronized (this) {
+                oldAddresses = entry.addresses.clone();
+                lengths = entry.lengths.clone();
+            }
+            long[] newAddresses = new long[valueCount];
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    if (oldAddresses[i] != 0 && PackStore.segmentOf(oldAddresses[i]) == segmentId) {
+                        newAddresses[i] = packStore.copy(oldAddresses[i], (int) lengths[i]);
+                    }
+                }
+            } catch (IOException e) {
+                // The value was removed and its segment deleted, or the disk is failing.
+                for (long address : newAddresses) {
+                    if (address != 0) {
+                        packStore.discardAppend(address);
+                    }
+                }
+                continue;
+            }
+
+            synchronized (this) {
+                boolean unchanged = journalWriter != null && Arrays.equals(entry.addresses, oldAddresses);
+                for (int i = 0; i < valueCount; i++) {
+                    if (newAddresses[i] == 0) {
+                        continue;
+                    }
+                    if (unchanged) {
+                        packStore.commitAppend(newAddresses[i], entry.lengths[i]);
+                        packStore.release(oldAddresses[i], entry.lengths[i], true);
+                        entry.addresses[i] = newAddresses[i];
+                    } else {
+                        packStore.discardAppend(newAddresses[i]);
+                    }
+                }
+                if (unchanged) {
+                    journalWriter.writeClean(entry.diskKey, entry.expiryTimestamp, entry.lengths, entry.addresses);
+                    redundantOpCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts a newly published entry into the window, or updates the bytes an
+     * entry already in the window holds. Entries that overflow the window
+     * move on to the main region as long as the cache is under its low
+     * watermark; otherwise {@link #trimToSize} makes them compete for
+     * admission.
+     */
+    private void chargeWindow(Entry entry, boolean admitted) {
+        long entrySize = 0;
+        for (long length : entry.lengths) {
+            entrySize += length;
+        }
+        if (admitted) {
+            windowEntries.put(entry.diskKey, entry);
+            windowSize += entrySize;
+            entry.windowCharge = entrySize;
+            sketch.ensureCapacity(lruEntries.size());
+        } else if (entry.windowCharge >= 0) {
+            windowSize += entrySize - entry.windowCharge;
+            entry.windowCharge = entrySize;
+        }
+        if (size <= (long) (maxSize * lowWatermark) && !overShardBudget(lowWatermark)) {
+            while (windowSize > windowMaxSize() && windowEntries.size() > 1) {
+                leaveWindow(windowEntries.values().iterator().next());
+            }
+        }
+    }
+
+    private void leaveWindow(Entry entry) {
+        if (entry.windowCharge >= 0) {
+            windowEntries.remove(entry.diskKey);
+            windowSize -= entry.windowCharge;
+            entry.windowCharge = -1;
+        }
+    }
+
+    private long windowMaxSize() {
+        long budget = owner != null ? maxSize / owner.getShardCount() : maxSize;
+        return budget / 100;
+    }
+
+    /**
+     * Counts the partial value in {@code file}, which an interrupted edit just
+     * kept, then deletes the oldest partial values while they exceed their
+     * share of the budget.
+     */
+    private void addPartial(File file) {
+        forgetPartial(file);
+        long length = file.length();
+        partialLengths.put(file.getName(), length);
+        partialSize += length;
+        adjustSize(length);
+        long maxPartialSize = (long) (maxSize * MAX_PARTIAL_FRACTION);
+        Iterator<Map.Entry<String, Long>> oldest = partialLengths.entrySet().iterator();
+        while (partialSize > maxPartialSize && oldest.hasNext()) {
+            Map.Entry<String, Long> partial = oldest.next();
+            oldest.remove();
+            partialSize -= partial.getValue();
+            adjustSize(-partial.getValue());
+            new File(directory, partial.getKey()).delete();
+        }
+    }
+
+    /**
+     * Stops counting the partial value in {@code file}, which is about to be
+     * deleted or resumed. Returns false if it wasn't counted.
+     */
+    private boolean forgetPartial(File file) {
+        Long length = partialLengths.remove(file.getName());
+        if (length == null) {
+            return false;
+        }
+        partialSize -= length;
+        adjustSize(-length);
+        return true;
+    }
+
+    private void adjustSize(long delta) {
+        size += delta;
+        if (owner != null) {
+            owner.onShardSizeChanged(delta);
+        }
+    }
+
+    /**
+     * Returns true if this cache is a shard, the shards together exceed their
+     * shared budget and this shard holds more than its fair share of it.
+     */
+    private boolean overShardBudget() {
+        return overShardBudget(1f);
+    }
+
+    /**
+     * Returns true if this cache is a shard, the shards together exceed
+     * {@code watermark} of their shared budget and this shard holds more than
+     * its fair share of that.
+     */
+    private boolean overShardBudget(float watermark) {
+        return owner != null && owner.shouldEvict(size, watermark);
+    }
+
+    /**
+     * We checkpoint once the journal holds at least 2000 records and a quarter
+     * as many records as there are entries, so that replaying it on open stays
+     * short next to loading the checkpoint.
      */
     private boolean journalRebuildRequired() {
         final int redundantOpCompactThreshold = 2000;
         return redundantOpCount >= redundantOpCompactThreshold //
-                && redundantOpCount >= lruEntries.size();
+                && redundantOpCount >= lruEntries.size() / 4;
     }
 
     public boolean remove(String key) throws IOException {
@@ -652,84 +1739,324 @@ public final class LruDiskCache implements Closeable {
         return removeByDiskKey(diskKey);
     }
 
+    public boolean remove(CacheKey key) throws IOException {
+        return removeByDiskKey(key.getDiskName());
+    }
+
+    /**
+     * Drops the entry for {@code diskKey} if it exists and can be removed. Entries
+     * actively being edited cannot be removed.
+     *
+     * @return true if an entry was removed.
+     */
+    private synchronized boolean removeByDiskKey(String diskKey) throws IOException {
+        checkNotClosed();
+        Entry entry = lruEntries.get(diskKey);
+        if (entry == null || entry.currentEditor != null) {
+            return false;
+        }
+
+        for (int i = 0; i < valueCount; i++) {
+            deleteValue(entry, i);
+            File partial = entry.getPartialFile(i);
+            forgetPartial(partial);
+            partial.delete();
+        }
+        entry.readable = false;
+        leaveWindow(entry);
+        bufferedReads.remove(diskKey);
+
+        redundantOpCount++;
+        journalWriter.writeDelete(diskKey);
+        lruEntries.remove(diskKey);
+
+        if (journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if this cache has been closed.
+     */
+    public synchronized boolean isClosed() {
+        return journalWriter == null;
+    }
+
+    private void checkNotClosed() {
+        if (journalWriter == null) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    /**
+     * Force buffered operations to the filesystem.
+     */
+    public synchronized void flush() throws IOException {
+        checkNotClosed();
+        trimToSize();
+        flushBufferedReads();
+        journalWriter.flush();
+    }
+
+    /**
+     * Closes this cache. Stored values will remain on the filesystem.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (journalWriter == null) {
+            return; // Already closed.
+        }
+        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
+            if (entry.currentEditor != null) {
+                entry.currentEditor.abort();
+            }
+        }
+        trimToSize();
+        if (accessRecording == AccessRecording.CHECKPOINT_ONLY && unrecordedHits > 0) {
+            rebuildJournal();
+        }
+        flushBufferedReads();
+        journalWriter.close();
+        journalWriter = null;
+        releaseResources();
+    }
+
+    /**
+     * Closes the pack store and stops the background jobs once
+     * {@link #journalWriter} is gone. Must be called with the lock held.
+     */
+    private void releaseResources() {
+        packStore.close();
+        if (expirySweep != null) {
+            expirySweep.cancel(false);
+            expirySweep = null;
+        }
+        deleterService.shutdown();
+        try {
+            deleterService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Evicts entries once the cache exceeds {@link #maxSize}, the high
+     * watermark, until it is back under the low watermark. All victims are
+     * unlinked in this one pass under the lock, which only costs a DELETE
+     * record each; their files are deleted in bulk on the deleter thread.
+     */
+    private void trimToSize() throws IOException {
+        if (size <= maxSize && (size == 0 || !overShardBudget())) {
+            return;
+        }
+        long lowWatermarkSize = (long) (maxSize * lowWatermark);
+        List<PendingDelete> evicted = new ArrayList<PendingDelete>();
+        while (size > lowWatermarkSize || (size > 0 && overShardBudget(lowWatermark))) {
+            Entry toEvict = evictionPolicy == EvictionPolicy.TINY_LFU
+                    ? selectTinyLfuVictim()
+                    : selectLruVictim();
+            if (toEvict == null) {
+                break; // Only entries being edited are left.
+            }
+            evicted.add(evict(toEvict));
+        }
+        if (!evicted.isEmpty()) {
+            deleterService.execute(new DeleteTask(evicted));
+        }
+    }
+
+    /**
+     * Removes {@code entry} from the cache, leaving the deletion of its value
+     * files to the returned pending delete.
+     */
+    private PendingDelete evict(Entry entry) throws IOException {
+        List<File> files = new ArrayList<File>(valueCount);
+        metrics.evictions.incrementAndGet();
+        for (int i = 0; i < valueCount; i++) {
+            if (entry.addresses[i] != 0) {
+                releaseValue(entry, i);
+            } else {
+                files.add(entry.getCleanFile(i));
+            }
+            metrics.bytesEvicted.addAndGet(entry.lengths[i]);
+            adjustSize(-entry.lengths[i]);
+            entry.lengths[i] = 0;
+        }
+        for (int i = 0; i < valueCount; i++) {
+            File partial = entry.getPartialFile(i);
+            if (forgetPartial(partial)) {
+                files.add(partial);
+            }
+        }
+        entry.readable = false;
+        leaveWindow(entry);
+        bufferedReads.remove(entry.diskKey);
+
+        redundantOpCount++;
+        journalWriter.writeDelete(entry.diskKey);
+        lruEntries.remove(entry.diskKey);
+
+        PendingDelete pending = new PendingDelete(entry.diskKey, files.toArray(new File[files.size()]));
+        pendingDeletes.put(entry.diskKey, pending);
+        return pending;
+    }
+
+    /**
+     * Deletes the files of an evicted entry named {@code diskKey} right away
+     * if the deleter thread hasn't yet, so that they can't delete the files
+     * of a new entry of the same name.
+     */
+    private void finishPendingDelete(String diskKey) {
+        PendingDelete pending = pendingDeletes.get(diskKey);
+        if (pending != null) {
+            pending.run();
+        }
+    }
+
     /**
-     * Drops the entry for {@code diskKey} if it exists and can be removed. Entries
-     * actively being edited cannot be removed.
-     *
-     * @return true if an entry was removed.
+     * The files of an evicted entry. Deleting them once, by whichever thread
+     * comes first, removes the entry from {@link #pendingDeletes}.
      */
-    private synchronized boolean removeByDiskKey(String diskKey) throws IOException {
-        checkNotClosed();
-        Entry entry = lruEntries.get(diskKey);
-        if (entry == null || entry.currentEditor != null) {
-            return false;
+    private final class PendingDelete implements Runnable {
+        private final String diskKey;
+        private final File[] files;
+
+        private PendingDelete(String diskKey, File[] files) {
+            this.diskKey = diskKey;
+            this.files = files;
         }
 
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (file.exists() && !file.delete()) {
-                throw new IOException("failed to delete " + file);
+        @Override
+        public synchronized void run() {
+            if (pendingDeletes.remove(diskKey, this)) {
+                for (File file : files) {
+                    file.delete();
+                }
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
         }
+    }
 
-        redundantOpCount++;
-        journalWriter.append(DELETE + " " + diskKey + '\n');
-        lruEntries.remove(diskKey);
+    private static final class DeleteTask implements Runnable {
+        private final List<PendingDelete> deletes;
 
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        private DeleteTask(List<PendingDelete> deletes) {
+            this.deletes = deletes;
         }
 
-        return true;
+        @Override
+        public void run() {
+            for (PendingDelete delete : deletes) {
+                delete.run();
+            }
+        }
     }
 
     /**
-     * Returns true if this cache has been closed.
+     * Queues the expiry of {@code entry}, which must just have changed.
      */
-    public synchronized boolean isClosed() {
-        return journalWriter == null;
+    private void scheduleExpiry(Entry entry) {
+        if (entry.expiryTimestamp == Long.MAX_VALUE) {
+            return;
+        }
+        if (expiryQueue.size() > 2 * lruEntries.size() + 64) {
+            // Drop the records of removed entries and of changed expiries.
+            List<Expiry> current = new ArrayList<Expiry>();
+            for (Expiry expiry : expiryQueue) {
+                if (expiry.entry.readable && expiry.entry.expiryTimestamp == expiry.timestamp) {
+                    current.add(expiry);
+                }
+            }
+            expiryQueue.clear();
+            expiryQueue.addAll(current);
+        }
+        expiryQueue.add(new Expiry(entry));
+        scheduleExpirySweep(sweepTime(entry.expiryTimestamp));
     }
 
-    private void checkNotClosed() {
-        if (journalWriter == null) {
-            throw new IllegalStateException("cache is closed");
-        }
+    /**
+     * Returns when the sweeper may remove an entry expiring at {@code timestamp}.
+     */
+    private long sweepTime(long timestamp) {
+        return timestamp > Long.MAX_VALUE - staleRetention ? Long.MAX_VALUE : timestamp + staleRetention;
     }
 
     /**
-     * Force buffered operations to the filesystem.
+     * Makes sure that the expiry sweeper runs no later than {@code timestamp}.
      */
-    public synchronized void flush() throws IOException {
-        checkNotClosed();
-        trimToSize();
-        journalWriter.flush();
+    private void scheduleExpirySweep(long timestamp) {
+        if (timestamp >= expirySweepTime || journalWriter == null) {
+            return;
+        }
+        if (expirySweep != null) {
+            expirySweep.cancel(false);
+        }
+        expirySweepTime = timestamp;
+        long delay = Math.max(0, timestamp - System.currentTimeMillis() + 1);
+        expirySweep = EXPIRY_SCHEDULER.schedule(expirySweepTask, delay, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Closes this cache. Stored values will remain on the filesystem.
+     * An entry's expiry timestamp at the time it was queued.
      */
-    @Override
-    public synchronized void close() throws IOException {
-        if (journalWriter == null) {
-            return; // Already closed.
+    private final class Expiry implements Comparable<Expiry> {
+        private final long timestamp;
+        private final Entry entry;
+
+        private Expiry(Entry entry) {
+            this.timestamp = entry.expiryTimestamp;
+            this.entry = entry;
         }
-        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-            if (entry.currentEditor != null) {
-                entry.currentEditor.abort();
+
+        @Override
+        public int compareTo(Expiry other) {
+            return timestamp < other.timestamp ? -1 : (timestamp == other.timestamp ? 0 : 1);
+        }
+    }
+
+    /**
+     * Returns the least recently used entry that isn't being edited, or null
+     * if every entry is. An entry being revalidated or resumed sits at the
+     * head while its edit lasts; eviction passes over it.
+     */
+    private Entry selectLruVictim() {
+        for (Entry entry : lruEntries.values()) {
+            if (entry.currentEditor == null) {
+                return entry;
             }
         }
-        trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        return null;
     }
 
-    private void trimToSize() throws IOException {
-        while (size > maxSize) {
-            Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            removeByDiskKey(toEvict.getKey());
+    /**
+     * Returns the entry to evict under {@link EvictionPolicy#TINY_LFU}: the
+     * loser between the oldest entry of an overflowing window and the least
+     * recently used entry of the main region. The winner, if it came from
+     * the window, now belongs to the main region. Entries being edited are
+     * never returned; null means every entry is being edited.
+     */
+    private Entry selectTinyLfuVictim() {
+        Entry mainVictim = null;
+        for (Entry entry : lruEntries.values()) {
+            if (entry.windowCharge < 0 && entry.currentEditor == null) {
+                mainVictim = entry;
+                break;
+            }
+        }
+        Entry candidate = windowEntries.isEmpty() ? null : windowEntries.values().iterator().next();
+        if (candidate == null || (mainVictim != null && windowSize <= windowMaxSize())) {
+            return mainVictim != null ? mainVictim : selectLruVictim();
         }
+        leaveWindow(candidate);
+        if (candidate.currentEditor != null) {
+            return mainVictim != null ? mainVictim : selectLruVictim();
+        }
+        if (mainVictim == null) {
+            return candidate;
+        }
+        return sketch.frequency(candidate.diskKey) > sketch.frequency(mainVictim.diskKey)
+                ? mainVictim : candidate;
     }
 
     /**
@@ -750,16 +2077,27 @@ public final class LruDiskCache implements Closeable {
      * A snapshot of the values for an entry.
      */
     public final class Snapshot implements Closeable {
+        /**
+         * Values of at least this many bytes are mapped by
+         * {@link #getByteBuffer}; smaller ones are cheaper to read.
+         */
+        public static final int MAP_THRESHOLD = 64 * 1024;
+
         private final String diskKey;
         private final long sequenceNumber;
+        private final long expiryTimestamp;
         private final FileInputStream[] ins;
         private final long[] lengths;
+        private final long[] addresses;
 
-        private Snapshot(String diskKey, long sequenceNumber, FileInputStream[] ins, long[] lengths) {
+        private Snapshot(String diskKey, long sequenceNumber, long expiryTimestamp, FileInputStream[] ins,
+                         long[] lengths, long[] addresses) {
             this.diskKey = diskKey;
             this.sequenceNumber = sequenceNumber;
+            this.expiryTimestamp = expiryTimestamp;
             this.ins = ins;
             this.lengths = lengths;
+            this.addresses = addresses;
         }
 
         /**
@@ -771,8 +2109,22 @@ public final class LruDiskCache implements Closeable {
             return LruDiskCache.this.editByDiskKey(diskKey, sequenceNumber);
         }
 
+        /**
+         * Returns the time after which the entry expires, in milliseconds
+         * since the epoch, as of when this snapshot was taken.
+         */
+        public long getExpiryTimestamp() {
+            return expiryTimestamp;
+        }
+
         /**
          * Returns the unbuffered stream with the value for {@code index}.
+         * <p/>
+         * <p>If the value {@link #isPacked is packed}, the stream ends with the
+         * value, but its file descriptor and channel belong to the whole
+         * segment file. Never hand {@link FileInputStream#getFD} of such a
+         * stream to a native decoder, which would read on into the neighbouring
+         * values; decode from {@link #getBytes} instead.
          */
         public FileInputStream getInputStream(int index) {
             return ins[index];
@@ -792,6 +2144,78 @@ public final class LruDiskCache implements Closeable {
             return lengths[index];
         }
 
+        /**
+         * Returns true if the value for {@code index} is packed into a segment
+         * file together with other values, rather than stored in a file of its
+         * own. Only values up to the {@link LruDiskCache#setPackThreshold pack
+         * threshold} are packed.
+         */
+        public boolean isPacked(int index) {
+            return addresses[index] != 0;
+        }
+
+        /**
+         * Returns the position of the value for {@code index} in the file of
+         * its stream. This is 0 unless the value is packed into a segment file.
+         */
+        public long getOffset(int index) {
+            return PackStore.offsetOf(addresses[index]);
+        }
+
+        /**
+         * Returns the channel of the stream for {@code index}. The value
+         * occupies {@link #getLength} bytes starting at {@link #getOffset};
+         * positional reads of that range don't disturb the stream. The channel
+         * is closed with this snapshot.
+         */
+        public FileChannel getChannel(int index) {
+            return ins[index].getChannel();
+        }
+
+        /**
+         * Maps the value for {@code index} read-only. The mapping stays valid
+         * after this snapshot is closed and even after the entry is evicted.
+         */
+        public MappedByteBuffer map(int index) throws IOException {
+            return getChannel(index).map(FileChannel.MapMode.READ_ONLY, getOffset(index), lengths[index]);
+        }
+
+        /**
+         * Returns a read-only buffer over the value for {@code index}. Values
+         * of at least {@link #MAP_THRESHOLD} bytes are mapped; smaller ones are
+         * read into a heap buffer with a single positional read, leaving the
+         * stream untouched.
+         */
+        public ByteBuffer getByteBuffer(int index) throws IOException {
+            if (lengths[index] >= MAP_THRESHOLD) {
+                return map(index);
+            }
+            return ByteBuffer.wrap(getBytes(index)).asReadOnlyBuffer();
+        }
+
+        /**
+         * Reads the value for {@code index} into a new array with positional
+         * reads, leaving the stream untouched.
+         */
+        public byte[] getBytes(int index) throws IOException {
+            long length = lengths[index];
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("value " + index + " of " + diskKey + " is too large: " + length);
+            }
+            FileChannel channel = getChannel(index);
+            byte[] bytes = new byte[(int) length];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = getOffset(index);
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new EOFException("value " + index + " of " + diskKey + " was truncated");
+                }
+                position += read;
+            }
+            return bytes;
+        }
+
         @Override
         public void close() {
             for (InputStream in : ins) {
@@ -813,16 +2237,33 @@ public final class LruDiskCache implements Closeable {
     public final class Editor {
         private final Entry entry;
         private final boolean[] written;
+        private final PackingOutputStream[] packingStreams;
+
+        /**
+         * Addresses and lengths of the values this edit appended to the pack
+         * segments on commit; 0 for values written to dirty files.
+         */
+        private final long[] packedAddresses;
+        private final long[] packedLengths;
+        private long expiryTimestamp;
         private boolean hasErrors;
         private boolean committed;
 
         private Editor(Entry entry) {
             this.entry = entry;
+            this.expiryTimestamp = entry.expiryTimestamp;
             this.written = (entry.readable) ? null : new boolean[valueCount];
+            this.packingStreams = new PackingOutputStream[valueCount];
+            this.packedAddresses = new long[valueCount];
+            this.packedLengths = new long[valueCount];
         }
 
+        /**
+         * Sets the time after which the entry expires, in milliseconds since
+         * the epoch. Takes effect when this edit is committed.
+         */
         public void setEntryExpiryTimestamp(long timestamp) {
-            entry.expiryTimestamp = timestamp;
+            expiryTimestamp = timestamp;
         }
 
         /**
@@ -838,7 +2279,7 @@ public final class LruDiskCache implements Closeable {
                     return null;
                 }
                 try {
-                    return new FileInputStream(entry.getCleanFile(index));
+                    return entry.newInputStream(index);
                 } catch (FileNotFoundException e) {
                     return null;
                 }
@@ -860,6 +2301,10 @@ public final class LruDiskCache implements Closeable {
          * when writing to the filesystem, this edit will be aborted when
          * {@link #commit} is called. The returned output stream does not throw
          * IOExceptions.
+         * <p/>
+         * <p>While a pack threshold is set, the value is held in memory and
+         * appended to a pack segment on commit, unless it grows beyond the
+         * threshold and spills into a file of its own.
          */
         public OutputStream newOutputStream(int index) throws IOException {
             synchronized (LruDiskCache.this) {
@@ -869,21 +2314,59 @@ public final class LruDiskCache implements Closeable {
                 if (!entry.readable) {
                     written[index] = true;
                 }
-                File dirtyFile = entry.getDirtyFile(index);
-                FileOutputStream outputStream;
+                if (packingStreams[index] != null && !packingStreams[index].isBuffered()) {
+                    // An earlier stream spilled; the new value must not commit its file.
+                    deleteIfExists(entry.getDirtyFile(index));
+                }
+                int threshold = packThreshold;
+                if (threshold > 0) {
+                    packingStreams[index] = new PackingOutputStream(index, threshold);
+                    return new FaultHidingOutputStream(packingStreams[index]);
+                }
+                packingStreams[index] = null;
+                OutputStream outputStream = newDirtyFileStream(index);
+                return outputStream == NULL_OUTPUT_STREAM
+                        ? outputStream : new FaultHidingOutputStream(outputStream);
+            }
+        }
+
+        /**
+         * Opens the dirty file of the value at {@code index}, or returns
+         * {@link #NULL_OUTPUT_STREAM} if it can't be created.
+         */
+        private OutputStream newDirtyFileStream(int index) {
+            File dirtyFile = entry.getDirtyFile(index);
+            try {
+                return new FileOutputStream(dirtyFile);
+            } catch (FileNotFoundException e) {
+                // Attempt to recreate the cache directory.
+                directory.mkdirs();
                 try {
-                    outputStream = new FileOutputStream(dirtyFile);
-                } catch (FileNotFoundException e) {
-                    // Attempt to recreate the cache directory.
-                    directory.mkdirs();
-                    try {
-                        outputStream = new FileOutputStream(dirtyFile);
-                    } catch (FileNotFoundException e2) {
-                        // We are unable to recover. Silently eat the writes.
-                        return NULL_OUTPUT_STREAM;
-                    }
+                    return new FileOutputStream(dirtyFile);
+                } catch (FileNotFoundException e2) {
+                    // We are unable to recover. Silently eat the writes.
+                    return NULL_OUTPUT_STREAM;
+                }
+            }
+        }
+
+        /**
+         * Appends the values still held in memory to the pack segments. On
+         * failure the edit has errors and is aborted by {@link #commit}.
+         */
+        private void appendPackedValues() {
+            for (int i = 0; i < valueCount; i++) {
+                PackingOutputStream stream = packingStreams[i];
+                if (stream == null || !stream.isBuffered()) {
+                    continue;
+                }
+                try {
+                    packedAddresses[i] = packStore.append(stream.buffer, stream.count);
+                    packedLengths[i] = stream.count;
+                } catch (IOException e) {
+                    hasErrors = true;
+                    return;
                 }
-                return new FaultHidingOutputStream(outputStream);
             }
         }
 
@@ -905,6 +2388,9 @@ public final class LruDiskCache implements Closeable {
          * edit lock so another edit may be started on the same key.
          */
         public void commit() throws IOException {
+            if (!hasErrors) {
+                appendPackedValues();
+            }
             if (hasErrors) {
                 completeEdit(this, false);
                 removeByDiskKey(entry.diskKey); // The previous entry is stale.
@@ -931,6 +2417,113 @@ public final class LruDiskCache implements Closeable {
             }
         }
 
+        /**
+         * Aborts this edit but keeps the values written to dirty files so far
+         * as partial values of the entry, which a later edit can continue
+         * with {@link #newAppendingOutputStream}. Values still held in memory
+         * for packing aren't kept, nor is anything if a write failed. Partial
+         * values survive a restart and count towards the size. They are
+         * replaced by the next edit that keeps some, deleted by the next
+         * successful commit, eviction or removal of the entry, and the oldest
+         * are deleted once they take more than {@link #MAX_PARTIAL_FRACTION}
+         * of the budget.
+         */
+        public void abortKeepingPartial() throws IOException {
+            synchronized (LruDiskCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                if (!hasErrors) {
+                    for (int i = 0; i < valueCount; i++) {
+                        File dirty = entry.getDirtyFile(i);
+                        if (dirty.exists()) {
+                            File partial = entry.getPartialFile(i);
+                            forgetPartial(partial);
+                            deleteIfExists(partial);
+                            if (!dirty.renameTo(partial)) {
+                                throw new IOException("failed to keep " + dirty);
+                            }
+                            addPartial(partial);
+                        }
+                    }
+                }
+                abort();
+            }
+        }
+
+        /**
+         * Returns the length of the partial value at {@code index} kept by an
+         * earlier edit, or 0 if there is none.
+         */
+        public long getPartialLength(int index) {
+            synchronized (LruDiskCache.this) {
+                return entry.getPartialFile(index).length();
+            }
+        }
+
+        /**
+         * Returns the partial value at {@code index} kept by an earlier edit as
+         * a string, or null if there is none.
+         */
+        public String getPartialString(int index) throws IOException {
+            InputStream in;
+            synchronized (LruDiskCache.this) {
+                try {
+                    in = new FileInputStream(entry.getPartialFile(index));
+                } catch (FileNotFoundException e) {
+                    return null;
+                }
+            }
+            return inputStreamToString(in);
+        }
+
+        /**
+         * Deletes the partial values kept by an earlier edit, e.g. because
+         * they can't be continued.
+         */
+        public void discardPartial() {
+            synchronized (LruDiskCache.this) {
+                for (int i = 0; i < valueCount; i++) {
+                    File partial = entry.getPartialFile(i);
+                    forgetPartial(partial);
+                    partial.delete();
+                }
+            }
+        }
+
+        /**
+         * Like {@link #newOutputStream}, but the value starts with the partial
+         * value at {@code index} kept by an earlier edit, if there is one, and
+         * is always written to a file of its own.
+         */
+        public OutputStream newAppendingOutputStream(int index) throws IOException {
+            synchronized (LruDiskCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                if (!entry.readable) {
+                    written[index] = true;
+                }
+                packingStreams[index] = null;
+                File dirty = entry.getDirtyFile(index);
+                File partial = entry.getPartialFile(index);
+                deleteIfExists(dirty);
+                if (partial.exists()) {
+                    if (!partial.renameTo(dirty)) {
+                        throw new IOException("failed to resume " + partial);
+                    }
+                    // The dirty file is counted when the edit commits.
+                    forgetPartial(partial);
+                }
+                try {
+                    return new FaultHidingOutputStream(new FileOutputStream(dirty, true));
+                } catch (FileNotFoundException e) {
+                    directory.mkdirs();
+                    return new FaultHidingOutputStream(new FileOutputStream(dirty, true));
+                }
+            }
+        }
+
         private class FaultHidingOutputStream extends FilterOutputStream {
             private FaultHidingOutputStream(OutputStream out) {
                 super(out);
@@ -973,6 +2566,85 @@ public final class LruDiskCache implements Closeable {
                 }
             }
         }
+
+        /**
+         * Holds a value in memory while it fits the pack threshold, so that
+         * {@link #commit} can append it to a pack segment. A larger value
+         * spills into the dirty file and is committed as a file of its own.
+         */
+        private final class PackingOutputStream extends OutputStream {
+            private final int index;
+            private final int threshold;
+            private byte[] buffer;
+            private int count;
+            private OutputStream spill;
+
+            private PackingOutputStream(int index, int threshold) {
+                this.index = index;
+                this.threshold = threshold;
+                this.buffer = new byte[Math.min(threshold, 8192)];
+            }
+
+            boolean isBuffered() {
+                return spill == null;
+            }
+
+            @Override
+            public void write(int oneByte) throws IOException {
+                if (spill == null && count < threshold) {
+                    ensureCapacity(count + 1);
+                    buffer[count++] = (byte) oneByte;
+                    return;
+                }
+                spill().write(oneByte);
+            }
+
+            @Override
+            public void write(byte[] b, int offset, int length) throws IOException {
+                if (spill == null && count + length <= threshold) {
+                    ensureCapacity(count + length);
+                    System.arraycopy(b, offset, buffer, count, length);
+                    count += length;
+                    return;
+                }
+                spill().write(b, offset, length);
+            }
+
+            private void ensureCapacity(int capacity) {
+                if (capacity > buffer.length) {
+                    byte[] grown = new byte[Math.min(Math.max(buffer.length * 2, capacity), threshold)];
+                    System.arraycopy(buffer, 0, grown, 0, count);
+                    buffer = grown;
+                }
+            }
+
+            private OutputStream spill() throws IOException {
+                if (spill == null) {
+                    OutputStream out = newDirtyFileStream(index);
+                    if (out == NULL_OUTPUT_STREAM) {
+                        throw new IOException("failed to create " + entry.getDirtyFile(index));
+                    }
+                    out.write(buffer, 0, count);
+                    buffer = null;
+                    spill = out;
+                }
+                return spill;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (spill != null) {
+                    spill.flush();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (spill != null) {
+                    spill.close();
+                }
+            }
+        }
     }
 
     private final class Entry {
@@ -985,11 +2657,23 @@ public final class LruDiskCache implements Closeable {
          */
         private final long[] lengths;
 
+        /**
+         * Pack segment addresses of this entry's values; 0 for values stored in
+         * files of their own.
+         */
+        private final long[] addresses;
+
         /**
          * True if this entry has ever been published.
          */
         private boolean readable;
 
+        /**
+         * The bytes this entry adds to {@link #windowSize} while it is in the
+         * TinyLFU window, or -1 if it isn't.
+         */
+        private long windowCharge = -1;
+
         /**
          * The ongoing edit or null if this entry is not being edited.
          */
@@ -1003,44 +2687,40 @@ public final class LruDiskCache implements Closeable {
         private Entry(String diskKey) {
             this.diskKey = diskKey;
             this.lengths = new long[valueCount];
+            this.addresses = new long[valueCount];
         }
 
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(" ").append(size);
-            }
-            return result.toString();
+        public File getCleanFile(int i) {
+            return new File(directory, diskKey + "" + i);
+        }
+
+        public FileInputStream newInputStream(int i) throws IOException {
+            return newInputStream(i, addresses[i], lengths[i]);
         }
 
         /**
-         * Set lengths using decimal numbers like "10123".
+         * Opens the value at {@code i} as it was stored at {@code address}
+         * with {@code length} bytes. Needs no lock.
          */
-        private void setLengths(String[] strings, int startIndex) throws IOException {
-            if ((strings.length - startIndex) != valueCount) {
-                throw invalidLengths(strings);
+        public FileInputStream newInputStream(int i, long address, long length) throws IOException {
+            if (address != 0) {
+                return packStore.newInputStream(address, length);
             }
-
-            try {
-                for (int i = 0; i < valueCount; i++) {
-                    lengths[i] = Long.parseLong(strings[i + startIndex]);
-                }
-            } catch (NumberFormatException e) {
-                throw invalidLengths(strings);
-            }
-        }
-
-        private IOException invalidLengths(String[] strings) throws IOException {
-            throw new IOException("unexpected journal line: " + java.util.Arrays.toString(strings));
-        }
-
-        public File getCleanFile(int i) {
-            return new File(directory, diskKey + "" + i);
+            return new FileInputStream(getCleanFile(i));
         }
 
         public File getDirtyFile(int i) {
             return new File(directory, diskKey + "" + i + ".tmp");
         }
+
+        /**
+         * Returns the file of a partial value kept by
+         * {@link Editor#abortKeepingPartial}. Unlike a dirty file it is kept
+         * when the cache is opened again.
+         */
+        public File getPartialFile(int i) {
+            return new File(directory, diskKey + "" + i + PARTIAL_FILE_SUFFIX);
+        }
     }
 
     /////////////////////////////////////// utils //////////////////////////////////////////////////////////////////////
@@ -1222,13 +2902,13 @@ public final class LruDiskCache implements Closeable {
         }
     }
 
-    private MD5FileNameGenerator fileNameGenerator = new MD5FileNameGenerator();
+    private FileNameGenerator fileNameGenerator = new MD5FileNameGenerator();
 
-    public MD5FileNameGenerator getFileNameGenerator() {
+    public FileNameGenerator getFileNameGenerator() {
         return fileNameGenerator;
     }
 
-    public void setFileNameGenerator(MD5FileNameGenerator fileNameGenerator) {
+    public void setFileNameGenerator(FileNameGenerator fileNameGenerator) {
         if (fileNameGenerator != null) {
             this.fileNameGenerator = fileNameGenerator;
         }
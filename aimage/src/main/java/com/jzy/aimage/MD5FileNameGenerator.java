@@ -1,5 +1,6 @@
 package com.jzy.aimage;
 
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -7,32 +8,45 @@ import java.security.NoSuchAlgorithmException;
  * Author: wyouflf
  * Date: 14-5-16
  * Time: 上午11:25
+ * <p/>
+ * <p>Names files by the lowercase hex MD5 of the UTF-8 key. Each thread keeps
+ * its own digest instance, and the name is built from a lookup table into a
+ * single char array.
  */
-public class MD5FileNameGenerator  {
+public class MD5FileNameGenerator implements FileNameGenerator {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
     public MD5FileNameGenerator() {
     }
 
+    @Override
     public String generate(String key) {
-        String cacheKey;
-        try {
-            final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(key.getBytes());
-            cacheKey = bytesToHexString(mDigest.digest());
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(key.hashCode());
+        MessageDigest digest = DIGESTS.get();
+        if (digest == null) {
+            return String.valueOf(key.hashCode());
         }
-        return cacheKey;
+        return toHex(digest.digest(key.getBytes(UTF_8)));
     }
 
-    private String bytesToHexString(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
         for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
-            }
-            sb.append(hex);
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
         }
-        return sb.toString();
+        return new String(chars);
     }
 }
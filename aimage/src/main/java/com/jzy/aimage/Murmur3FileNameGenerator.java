@@ -0,0 +1,99 @@
+package com.jzy.aimage;
+
+/**
+ * Names files by the 128-bit MurmurHash3 (x64 variant) of the key's UTF-16LE
+ * code units, as 32 lowercase hex digits. The chars are hashed straight from
+ * the string, so a name costs a single char array besides the name itself;
+ * it is several times faster than {@link MD5FileNameGenerator} and as
+ * collision-resistant for keys that aren't chosen by an attacker.
+ */
+public class Murmur3FileNameGenerator implements FileNameGenerator {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    @Override
+    public String generate(String key) {
+        int length = key.length();
+        long h1 = 0;
+        long h2 = 0;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            h1 ^= mixK1(fourChars(key, i));
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(fourChars(key, i + 4));
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        int remaining = length - i;
+        if (remaining > 4) {
+            long k2 = 0;
+            for (int j = remaining - 1; j >= 4; j--) {
+                k2 |= (long) key.charAt(i + j) << ((j - 4) * 16);
+            }
+            h2 ^= mixK2(k2);
+        }
+        if (remaining > 0) {
+            long k1 = 0;
+            for (int j = Math.min(remaining, 4) - 1; j >= 0; j--) {
+                k1 |= (long) key.charAt(i + j) << (j * 16);
+            }
+            h1 ^= mixK1(k1);
+        }
+        h1 ^= length * 2L;
+        h2 ^= length * 2L;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        char[] chars = new char[32];
+        writeHex(h1, chars, 0);
+        writeHex(h2, chars, 16);
+        return new String(chars);
+    }
+
+    private static long fourChars(String key, int i) {
+        return (long) key.charAt(i)
+                | (long) key.charAt(i + 1) << 16
+                | (long) key.charAt(i + 2) << 32
+                | (long) key.charAt(i + 3) << 48;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * Writes {@code value} as 16 hex digits, least significant byte first, so
+     * that the name reads like the little-endian bytes of the hash.
+     */
+    private static void writeHex(long value, char[] chars, int offset) {
+        for (int b = 0; b < 8; b++) {
+            int v = (int) (value >>> (b * 8)) & 0xff;
+            chars[offset + 2 * b] = MD5FileNameGenerator.HEX_DIGITS[v >>> 4];
+            chars[offset + 2 * b + 1] = MD5FileNameGenerator.HEX_DIGITS[v & 0xf];
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.jzy.aimage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Log-structured storage for the small values of a {@link LruDiskCache}.
+ * Values are appended to large segment files named "pack.1", "pack.2" and so
+ * on, so that committing a value costs no file creation, rename or delete.
+ * <p/>
+ * <p>A value is located by its address, {@code segment << 32 | offset}. Since
+ * segment ids start at 1, the address 0 is free to mean "stored in its own
+ * file". Only the active segment is appended to; once it reaches the segment
+ * size it is sealed and a new one is started. Each segment counts the bytes
+ * still referenced by an entry, and sealed segments whose live ratio drops
+ * below one half are compacted by the cache: their live values are copied to
+ * the active segment and the segment is deleted once nothing refers to it.
+ * <p/>
+ * <p>Appends happen outside of the cache lock and are only published when the
+ * cache records the address with {@link #commitAppend}; until then the segment
+ * is pinned so that it can't be deleted underneath the append.
+ */
+final class PackStore {
+    static final String SEGMENT_PREFIX = "pack.";
+    static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final File directory;
+    private final long segmentSize;
+    private final Map<Integer, Segment> segments = new HashMap<Integer, Segment>();
+    private Segment active;
+    private FileOutputStream activeOut;
+    private int nextSegmentId = 1;
+
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        private long length;
+        private long liveBytes;
+        private int pendingAppends;
+        private boolean sealed = true;
+
+        private Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    PackStore(File directory, long segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    static int segmentOf(long address) {
+        return (int) (address >>> 32);
+    }
+
+    static long offsetOf(long address) {
+        return address & 0xffffffffL;
+    }
+
+    File segmentFile(long address) {
+        return new File(directory, SEGMENT_PREFIX + segmentOf(address));
+    }
+
+    /**
+     * Returns the segment with {@code id}, registering a sealed segment left
+     * by an earlier session on first use.
+     */
+    private Segment segment(int id) {
+        Segment segment = segments.get(id);
+        if (segment == null) {
+            segment = new Segment(id, new File(directory, SEGMENT_PREFIX + id));
+            segment.length = segment.file.length();
+            segments.put(id, segment);
+            if (id >= nextSegmentId) {
+                nextSegmentId = id + 1;
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Appends {@code length} bytes of {@code data} to the active segment and
+     * returns their address. The caller must either commit or discard it.
+     */
+    synchronized long append(byte[] data, int length) throws IOException {
+        if (active == null || active.length >= segmentSize) {
+            startSegment();
+        }
+        long offset = active.length;
+        activeOut.write(data, 0, length);
+        active.length += length;
+        active.pendingAppends++;
+        return (long) active.id << 32 | offset;
+    }
+
+    private void startSegment() throws IOException {
+        if (active != null) {
+            active.sealed = true;
+            IOUtils.closeQuietly(activeOut);
+            activeOut = null;
+            deleteIfUnused(active);
+        }
+        int id = nextSegmentId++;
+        Segment segment = new Segment(id, new File(directory, SEGMENT_PREFIX + id));
+        segment.sealed = false;
+        // Truncates a leftover file that no entry refers to.
+        activeOut = new FileOutputStream(segment.file);
+        segments.put(id, segment);
+        active = segment;
+    }
+
+    /**
+     * Publishes an appended value: its bytes now belong to an entry.
+     */
+    synchronized void commitAppend(long address, long length) {
+        Segment segment = segment(segmentOf(address));
+        segment.pendingAppends--;
+        segment.liveBytes += length;
+    }
+
+    /**
+     * Gives up an appended value that no entry will refer to.
+     */
+    synchronized void discardAppend(long address) {
+        Segment segment = segment(segmentOf(address));
+        segment.pendingAppends--;
+        deleteIfUnused(segment);
+    }
+
+    /**
+     * Counts a value of an entry read from the journal as live.
+     */
+    synchronized void addLive(long address, long length) {
+        segment(segmentOf(address)).liveBytes += length;
+    }
+
+    /**
+     * Releases a value that its entry no longer refers to. Unless
+     * {@code deleteUnused} is false, as while reading the journal, a sealed
+     * segment left without live bytes is deleted. Returns true if this
+     * release made a sealed segment a candidate for compaction.
+     */
+    synchronized boolean release(long address, long length, boolean deleteUnused) {
+        Segment segment = segment(segmentOf(address));
+        boolean wasDense = segment.liveBytes * 2 >= segment.length;
+        segment.liveBytes -= length;
+        if (deleteUnused) {
+            deleteIfUnused(segment);
+        }
+        return wasDense && segment.sealed && segment.liveBytes > 0 && segment.liveBytes * 2 < segment.length;
+    }
+
+    private void deleteIfUnused(Segment segment) {
+        if (segment.sealed && segment.liveBytes <= 0 && segment.pendingAppends <= 0) {
+            segment.file.delete();
+            segments.remove(segment.id);
+        }
+    }
+
+    /**
+     * Deletes the segment files that hold no live value, including files in
+     * the directory this store doesn't know about.
+     */
+    synchronized void deleteUnusedSegments() {
+        for (Segment segment : segments.values().toArray(new Segment[segments.size()])) {
+            deleteIfUnused(segment);
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX)) {
+                continue;
+            }
+            try {
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+                if (!segments.containsKey(id)) {
+                    file.delete();
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the sealed segment with the lowest live ratio if it is
+     * below one half, or -1 if no segment needs compaction.
+     */
+    synchronized int compactionCandidate() {
+        int candidate = -1;
+        double lowestRatio = 0.5;
+        for (Segment segment : segments.values()) {
+            if (!segment.sealed || segment.pendingAppends > 0 || segment.length == 0) {
+                continue;
+            }
+            double ratio = (double) segment.liveBytes / segment.length;
+            if (ratio < lowestRatio) {
+                lowestRatio = ratio;
+                candidate = segment.id;
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * Copies a value to the active segment and returns its new address, which
+     * the caller must either commit or discard. Runs outside of any lock.
+     */
+    long copy(long address, int length) throws IOException {
+        byte[] data = new byte[length];
+        RandomAccessFile file = new RandomAccessFile(segmentFile(address), "r");
+        try {
+            file.seek(offsetOf(address));
+            file.readFully(data);
+        } finally {
+            IOUtils.closeQuietly(file);
+        }
+        return append(data, length);
+    }
+
+    /**
+     * Opens a stream over the value at {@code address}.
+     */
+    FileInputStream newInputStream(long address, long length) throws IOException {
+        return new SegmentInputStream(segmentFile(address), offsetOf(address), length);
+    }
+
+    synchronized void close() {
+        if (activeOut != null) {
+            IOUtils.closeQuietly(activeOut);
+            activeOut = null;
+        }
+        if (active != null) {
+            active.sealed = true;
+            active = null;
+        }
+    }
+
+    /**
+     * A file stream limited to one value of a segment. Its file descriptor is
+     * positioned at the start of the value, but isn't limited to it: native
+     * code reading from the descriptor runs on into the following values.
+     */
+    private static final class SegmentInputStream extends FileInputStream {
+        private long remaining;
+
+        private SegmentInputStream(File file, long offset, long length) throws IOException {
+            super(file);
+            try {
+                getChannel().position(offset);
+            } catch (IOException e) {
+                IOUtils.closeQuietly(this);
+                throw e;
+            }
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer) throws IOException {
+            return read(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(buffer, offset, (int) Math.min(count, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(Math.min(count, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+}
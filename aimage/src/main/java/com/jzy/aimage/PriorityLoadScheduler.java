@@ -0,0 +1,210 @@
+package com.jzy.aimage;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs load tasks on a fixed number of threads, most urgent priority first
+ * and, within a priority, most recently submitted first: after a fling the
+ * images now on screen are loaded before those that were scrolled past.
+ * <p/>
+ * <p>At most {@code maxQueued} tasks wait at a time. Submitting one more drops
+ * the oldest task of the lowest priority that has any, which is told through
+ * {@link LoadScheduler.Task#onDropped}. A waiting task moves to the front of
+ * its new priority when its priority changes.
+ */
+public final class PriorityLoadScheduler implements LoadScheduler {
+    public static final int DEFAULT_THREAD_COUNT = 3;
+    public static final int DEFAULT_MAX_QUEUED = 64;
+
+    private static final String TAG = "PriorityLoadScheduler";
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final int threadCount;
+    private final int maxQueued;
+
+    /**
+     * One deque per priority, the newest task last. Guarded by this.
+     */
+    private final List<ArrayDeque<PriorityJob>> queues;
+    private int queued;
+    private int threads;
+    private int idleThreads;
+
+    public PriorityLoadScheduler() {
+        this(DEFAULT_THREAD_COUNT, DEFAULT_MAX_QUEUED);
+    }
+
+    public PriorityLoadScheduler(int threadCount, int maxQueued) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount <= 0");
+        }
+        if (maxQueued <= 0) {
+            throw new IllegalArgumentException("maxQueued <= 0");
+        }
+        this.threadCount = threadCount;
+        this.maxQueued = maxQueued;
+        this.queues = new ArrayList<ArrayDeque<PriorityJob>>(PRIORITIES.length);
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            queues.add(new ArrayDeque<PriorityJob>());
+        }
+    }
+
+    @Override
+    public Job submit(Task task, Priority priority) {
+        PriorityJob job = new PriorityJob(task, priority);
+        PriorityJob dropped = null;
+        synchronized (this) {
+            queues.get(priority.ordinal()).addLast(job);
+            if (++queued > maxQueued) {
+                dropped = pollOldestLowest();
+            }
+            if (idleThreads > 0) {
+                notify();
+            }
+            if (queued > idleThreads && threads < threadCount) {
+                startThread();
+            }
+        }
+        if (dropped != null) {
+            dropped.task.onDropped();
+        }
+        return job;
+    }
+
+    /**
+     * Returns the number of tasks waiting to run.
+     */
+    public synchronized int getQueuedCount() {
+        return queued;
+    }
+
+    private PriorityJob pollOldestLowest() {
+        for (int i = queues.size() - 1; i >= 0; i--) {
+            PriorityJob job = queues.get(i).pollFirst();
+            if (job != null) {
+                queued--;
+                job.state = PriorityJob.DROPPED;
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private PriorityJob pollNewestHighest() {
+        for (ArrayDeque<PriorityJob> queue : queues) {
+            PriorityJob job = queue.pollLast();
+            if (job != null) {
+                queued--;
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private void startThread() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runJobs();
+                } finally {
+                    // Only reached if the loop itself failed; replace this thread so the queue keeps draining.
+                    synchronized (PriorityLoadScheduler.this) {
+                        threads--;
+                        if (queued > idleThreads && threads < threadCount) {
+                            startThread();
+                        }
+                    }
+                }
+            }
+        }, "AImage loader #" + (++threads));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void runJobs() {
+        while (true) {
+            PriorityJob job;
+            synchronized (this) {
+                while ((job = pollNewestHighest()) == null) {
+                    idleThreads++;
+                    try {
+                        wait();
+                    } catch (InterruptedException ignored) {
+                        // Interrupts are only meant for the job that was running.
+                    } finally {
+                        idleThreads--;
+                    }
+                }
+                job.state = PriorityJob.RUNNING;
+                job.thread = Thread.currentThread();
+            }
+            try {
+                job.task.run();
+            } catch (Throwable e) {
+                // An Error such as OutOfMemoryError during a decode must not take the thread down with it.
+                Log.e(TAG, "load task failed", e);
+            } finally {
+                synchronized (this) {
+                    job.state = PriorityJob.DONE;
+                    job.thread = null;
+                    // Clear an interrupt from a late cancel() so it doesn't hit the next job.
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    private final class PriorityJob implements Job {
+        static final int QUEUED = 0;
+        static final int RUNNING = 1;
+        static final int DONE = 2;
+        static final int DROPPED = 3;
+
+        final Task task;
+        Priority priority;
+        int state = QUEUED;
+        Thread thread;
+
+        PriorityJob(Task task, Priority priority) {
+            this.task = task;
+            this.priority = priority;
+        }
+
+        @Override
+        public Priority getPriority() {
+            synchronized (PriorityLoadScheduler.this) {
+                return priority;
+            }
+        }
+
+        @Override
+        public void setPriority(Priority priority) {
+            synchronized (PriorityLoadScheduler.this) {
+                if (state == QUEUED && queues.get(this.priority.ordinal()).remove(this)) {
+                    queues.get(priority.ordinal()).addLast(this);
+                }
+                this.priority = priority;
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (PriorityLoadScheduler.this) {
+                if (state == QUEUED) {
+                    if (queues.get(priority.ordinal()).remove(this)) {
+                        queued--;
+                    }
+                    state = DONE;
+                } else if (state == RUNNING) {
+                    thread.interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.jzy.aimage;
+
+import android.graphics.Bitmap;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+
+/**
+ * Weakly references bitmaps that fell out of the strong memory cache while
+ * they were still in use, e.g. displayed by a view. As long as anything keeps
+ * such a bitmap alive it can be found here instead of being decoded again;
+ * once it is collected its entry is dropped. The tier costs no memory budget
+ * of its own. Instances are thread-safe.
+ */
+public final class ReferenceBitmapCache {
+    private final HashMap<String, KeyedReference> references = new HashMap<String, KeyedReference>();
+    private final ReferenceQueue<Bitmap> queue = new ReferenceQueue<Bitmap>();
+    private int hitCount;
+    private int missCount;
+
+    ReferenceBitmapCache() {
+    }
+
+    synchronized void put(String key, Bitmap bitmap) {
+        purge();
+        references.put(key, new KeyedReference(key, bitmap, queue));
+    }
+
+    /**
+     * Removes and returns the bitmap for {@code key} if it is still alive.
+     */
+    synchronized Bitmap take(String key) {
+        purge();
+        KeyedReference reference = references.remove(key);
+        Bitmap bitmap = reference != null ? reference.get() : null;
+        if (bitmap == null || bitmap.isRecycled()) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return bitmap;
+    }
+
+    private void purge() {
+        KeyedReference reference;
+        while ((reference = (KeyedReference) queue.poll()) != null) {
+            if (references.get(reference.key) == reference) {
+                references.remove(reference.key);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of referenced bitmaps, including some that may
+     * already have been collected.
+     */
+    public synchronized int size() {
+        purge();
+        return references.size();
+    }
+
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int requests = hitCount + missCount;
+        int hitPercent = requests != 0 ? (100 * hitCount / requests) : 0;
+        return String.format("ReferenceBitmapCache[size=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                references.size(), hitCount, missCount, hitPercent);
+    }
+
+    private static final class KeyedReference extends WeakReference<Bitmap> {
+        final String key;
+
+        KeyedReference(String key, Bitmap bitmap, ReferenceQueue<Bitmap> queue) {
+            super(bitmap, queue);
+            this.key = key;
+        }
+    }
+}
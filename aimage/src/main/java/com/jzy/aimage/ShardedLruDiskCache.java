@@ -0,0 +1,331 @@
+package com.jzy.aimage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A disk cache whose key space is split across several independent
+ * {@link LruDiskCache} shards. Each key always maps to the same shard, and each
+ * shard lives in its own sub directory with its own journal, lock, LRU order
+ * and size accounting. Loaders working on keys of different shards therefore
+ * never wait for each other's file opens, renames and journal writes.
+ * <p/>
+ * <p>The byte budget is shared: the shards may grow unevenly, but once they
+ * exceed {@code maxSize} together, every shard holding more than its fair share
+ * ({@code maxSize / shardCount}) evicts its least recently used entries until
+ * the total is back under budget.
+ */
+public final class ShardedLruDiskCache implements Closeable {
+    private final File directory;
+    private final LruDiskCache[] shards;
+    private final AtomicLong size = new AtomicLong();
+    private volatile long maxSize;
+
+    private ShardedLruDiskCache(File directory, int shardCount, long maxSize) {
+        this.directory = directory;
+        this.shards = new LruDiskCache[shardCount];
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there. Each shard is stored in a numbered sub directory.
+     * <p/>
+     * <p>If {@code directory} holds an unsharded {@link LruDiskCache}, that
+     * cache is discarded: every file directly in {@code directory} is deleted
+     * and the shards start empty. Its entries are not migrated, because its
+     * journal format and file names predate the shards and couldn't be read by
+     * them anyway.
+     *
+     * @param directory  a writable directory
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize    the maximum number of bytes all shards together should use to store
+     * @param shardCount the number of shards. Must be positive.
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static ShardedLruDiskCache open(File directory, int appVersion, int valueCount, long maxSize, int shardCount)
+            throws IOException {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount <= 0");
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        // A journal in the root directory belongs to an unsharded cache.
+        if (new File(directory, LruDiskCache.JOURNAL_FILE).exists()) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isFile()) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+
+        ShardedLruDiskCache cache = new ShardedLruDiskCache(directory, shardCount, maxSize);
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                LruDiskCache shard = LruDiskCache.open(
+                        new File(directory, Integer.toString(i)), appVersion, valueCount, maxSize);
+                shard.attachTo(cache);
+                cache.shards[i] = shard;
+                cache.size.addAndGet(shard.size());
+            }
+        } catch (IOException e) {
+            cache.close();
+            throw e;
+        }
+        cache.onShardSizeChanged(0);
+        return cache;
+    }
+
+    private LruDiskCache shardFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+
+    /**
+     * Hashes {@code key} once for use with the {@link CacheKey} overloads. All
+     * shards share one {@link FileNameGenerator}.
+     */
+    public CacheKey newKey(String key) {
+        return shards[0].newKey(key);
+    }
+
+    public LruDiskCache.Snapshot get(String key) throws IOException {
+        return shardFor(key).get(key);
+    }
+
+    public LruDiskCache.Snapshot get(CacheKey key) throws IOException {
+        return shardFor(key.getKey()).get(key);
+    }
+
+    public LruDiskCache.Editor edit(String key) throws IOException {
+        return shardFor(key).edit(key);
+    }
+
+    public LruDiskCache.Editor edit(CacheKey key) throws IOException {
+        return shardFor(key.getKey()).edit(key);
+    }
+
+    public boolean contains(String key) throws IOException {
+        return shardFor(key).contains(key);
+    }
+
+    public boolean contains(CacheKey key) throws IOException {
+        return shardFor(key.getKey()).contains(key);
+    }
+
+    public boolean remove(String key) throws IOException {
+        return shardFor(key).remove(key);
+    }
+
+    public boolean remove(CacheKey key) throws IOException {
+        return shardFor(key.getKey()).remove(key);
+    }
+
+    public long getExpiryTimestamp(String key) throws IOException {
+        return shardFor(key).getExpiryTimestamp(key);
+    }
+
+    public long getExpiryTimestamp(CacheKey key) throws IOException {
+        return shardFor(key.getKey()).getExpiryTimestamp(key);
+    }
+
+    public File getCacheFile(String key, int index) {
+        return shardFor(key).getCacheFile(key, index);
+    }
+
+    public File getCacheFile(CacheKey key, int index) {
+        return shardFor(key.getKey()).getCacheFile(key, index);
+    }
+
+    /**
+     * Returns the directory where this cache stores its shards.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the maximum number of bytes that all shards together should use
+     * to store their data.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the shared budget and queues jobs to trim the shards, if necessary.
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        for (LruDiskCache shard : shards) {
+            shard.setMaxSize(maxSize);
+        }
+    }
+
+    /**
+     * Sets the eviction policy of every shard.
+     *
+     * @see LruDiskCache#setEvictionPolicy(LruDiskCache.EvictionPolicy)
+     */
+    public void setEvictionPolicy(LruDiskCache.EvictionPolicy evictionPolicy) {
+        for (LruDiskCache shard : shards) {
+            shard.setEvictionPolicy(evictionPolicy);
+        }
+    }
+
+    /**
+     * Sets the access recording mode of every shard.
+     *
+     * @see LruDiskCache#setAccessRecording(LruDiskCache.AccessRecording)
+     */
+    public void setAccessRecording(LruDiskCache.AccessRecording accessRecording) {
+        for (LruDiskCache shard : shards) {
+            shard.setAccessRecording(accessRecording);
+        }
+    }
+
+    /**
+     * Sets the low watermark of every shard.
+     *
+     * @see LruDiskCache#setLowWatermark(float)
+     */
+    public void setLowWatermark(float lowWatermark) {
+        for (LruDiskCache shard : shards) {
+            shard.setLowWatermark(lowWatermark);
+        }
+    }
+
+    /**
+     * Sets the stale retention of every shard.
+     *
+     * @see LruDiskCache#setStaleRetention(long)
+     */
+    public void setStaleRetention(long staleRetention) {
+        for (LruDiskCache shard : shards) {
+            shard.setStaleRetention(staleRetention);
+        }
+    }
+
+    /**
+     * Sets the pack threshold of every shard.
+     *
+     * @see LruDiskCache#setPackThreshold(int)
+     */
+    public void setPackThreshold(int packThreshold) {
+        for (LruDiskCache shard : shards) {
+            shard.setPackThreshold(packThreshold);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the sum of the metrics of all shards, which later
+     * operations don't change.
+     */
+    public DiskCacheMetrics getMetrics() {
+        DiskCacheMetrics metrics = new DiskCacheMetrics();
+        for (LruDiskCache shard : shards) {
+            metrics.add(shard.getMetrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the number of bytes currently stored by all shards.
+     */
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * Called by a shard, under its own lock, whenever its size changes.
+     */
+    void onShardSizeChanged(long delta) {
+        if (size.addAndGet(delta) > maxSize && delta >= 0) {
+            // Only the shards above their fair share evict; let each check under its own lock.
+            // A shard with a trim already queued ignores the request.
+            for (LruDiskCache shard : shards) {
+                if (shard != null) {
+                    shard.requestTrim();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if a shard of {@code shardSize} bytes should evict to bring
+     * the shards back under {@code watermark} of their shared budget.
+     */
+    boolean shouldEvict(long shardSize, float watermark) {
+        long budget = (long) (maxSize * watermark);
+        return size.get() > budget && shardSize > budget / shards.length;
+    }
+
+    public boolean isClosed() {
+        for (LruDiskCache shard : shards) {
+            if (shard == null || !shard.isClosed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Force buffered operations of every shard to the filesystem.
+     */
+    public void flush() throws IOException {
+        for (LruDiskCache shard : shards) {
+            shard.flush();
+        }
+    }
+
+    /**
+     * Closes every shard. Stored values will remain on the filesystem.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (LruDiskCache shard : shards) {
+            if (shard == null) {
+                continue;
+            }
+            try {
+                shard.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Closes the cache and deletes all of its stored values.
+     */
+    public void delete() throws IOException {
+        IOUtils.closeQuietly(this);
+        for (LruDiskCache shard : shards) {
+            if (shard != null) {
+                shard.delete();
+            }
+        }
+    }
+
+    public void setFileNameGenerator(FileNameGenerator fileNameGenerator) {
+        for (LruDiskCache shard : shards) {
+            shard.setFileNameGenerator(fileNameGenerator);
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package com.jzy.aimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import okhttp3.Call;
+
+/**
+ * An image too large to decode at once, such as a map or a scanned document,
+ * decoded in tiles with {@link BitmapRegionDecoder} straight from its disk
+ * cache entry. Open one with {@link BitmapHelper#openTiledImage}.
+ * <p/>
+ * <p>The application reports the part of the image that is on screen and the
+ * scale it is drawn at through {@link #setVisibleRegion}. The image is then
+ * split into tiles of {@link #TILE_SIZE} decoded pixels at the power-of-two
+ * sample size that matches the scale, and only the visible tiles that aren't
+ * cached yet are decoded, at {@link LoadScheduler.Priority#VISIBLE}. Waiting
+ * decodes of tiles that went off screen are cancelled. Decoded tiles are kept
+ * in a cache with its own byte budget, so memory use doesn't depend on the
+ * size of the source. Listener methods are called on the main thread.
+ */
+public final class TiledImage {
+    /**
+     * The width and height of a decoded tile in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+
+    public interface Listener {
+        /**
+         * The image was downloaded and its size is known.
+         */
+        void onReady(TiledImage image);
+
+        /**
+         * A visible tile was decoded; redraw it.
+         */
+        void onTileLoaded(TiledImage image, Tile tile);
+
+        void onError(TiledImage image, Exception e);
+    }
+
+    /**
+     * A decoded part of the image.
+     */
+    public static final class Tile {
+        private final Rect region;
+        private final int sampleSize;
+        private final Bitmap bitmap;
+
+        Tile(Rect region, int sampleSize, Bitmap bitmap) {
+            this.region = region;
+            this.sampleSize = sampleSize;
+            this.bitmap = bitmap;
+        }
+
+        /**
+         * Returns the part of the image this tile shows, in image pixels.
+         */
+        public Rect getRegion() {
+            return new Rect(region);
+        }
+
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+    }
+
+    private final String url;
+    private final LoadScheduler scheduler;
+    private final Handler handler;
+    private final Listener listener;
+    private final LruCache<String, Bitmap> tiles;
+
+    // All fields below are guarded by this.
+    private LruDiskCache.Snapshot snapshot;
+    private BitmapRegionDecoder decoder;
+    private int width;
+    private int height;
+    private Rect visibleRegion;
+    private float visibleScale = 1;
+    private int sampleSize = 1;
+    private final Map<String, TileTask> pending = new HashMap<String, TileTask>();
+    private int activeDecodes;
+    private boolean closed;
+    private Call call;
+
+    TiledImage(String url, LoadScheduler scheduler, Handler handler, int tileCacheSize, Listener listener) {
+        this.url = url;
+        this.scheduler = scheduler;
+        this.handler = handler;
+        this.listener = listener;
+        this.tiles = new LruCache<String, Bitmap>(tileCacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Returns the width of the full image, or 0 before it is ready.
+     */
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    public synchronized int getHeight() {
+        return height;
+    }
+
+    /**
+     * Sets the part of the image that is visible, in image pixels, and the
+     * number of screen pixels per image pixel it is drawn at. Starts decoding
+     * the visible tiles that aren't cached and cancels waiting decodes of
+     * tiles that are no longer visible.
+     */
+    public void setVisibleRegion(Rect region, float scale) {
+        List<TileTask> submit = new ArrayList<TileTask>();
+        synchronized (this) {
+            visibleRegion = new Rect(region);
+            visibleScale = scale;
+            if (decoder == null || closed) {
+                return; // Applied once the image is ready.
+            }
+            sampleSize = sampleSizeFor(scale);
+            Set<String> visible = new HashSet<String>();
+            for (Rect tile : visibleTiles()) {
+                String key = tileKey(tile, sampleSize);
+                visible.add(key);
+                if (tiles.get(key) == null && !pending.containsKey(key)) {
+                    TileTask task = new TileTask(key, tile, sampleSize);
+                    pending.put(key, task);
+                    submit.add(task);
+                }
+            }
+            for (Iterator<Map.Entry<String, TileTask>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                TileTask task = it.next().getValue();
+                if (!visible.contains(task.key)) {
+                    it.remove();
+                    task.cancel();
+                }
+            }
+        }
+        for (TileTask task : submit) {
+            task.submit();
+        }
+    }
+
+    /**
+     * Returns the decoded tiles of the visible region at the current sample
+     * size. Tiles that are still being decoded are missing.
+     */
+    public synchronized List<Tile> getVisibleTiles() {
+        List<Tile> result = new ArrayList<Tile>();
+        if (decoder == null || closed) {
+            return result;
+        }
+        for (Rect region : visibleTiles()) {
+            Bitmap bitmap = tiles.get(tileKey(region, sampleSize));
+            if (bitmap != null) {
+                result.add(new Tile(region, sampleSize, bitmap));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Cancels all decodes, drops the tile cache and releases the decoder and
+     * the disk cache entry.
+     */
+    public void close() {
+        Call toCancel;
+        List<TileTask> toCancelTasks;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            toCancel = call;
+            toCancelTasks = new ArrayList<TileTask>(pending.values());
+            pending.clear();
+            if (activeDecodes == 0) {
+                release();
+            }
+        }
+        if (toCancel != null) {
+            toCancel.cancel();
+        }
+        for (TileTask task : toCancelTasks) {
+            task.cancel();
+        }
+        tiles.evictAll();
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Remembers the download call of the image, so that closing cancels it.
+     */
+    void setCall(Call call) {
+        synchronized (this) {
+            this.call = call;
+            if (!closed) {
+                return;
+            }
+        }
+        call.cancel();
+    }
+
+    /**
+     * Creates the region decoder over {@code snapshot}, which this image then
+     * owns, and reports the image as ready. Called on a loader thread.
+     */
+    void open(LruDiskCache.Snapshot snapshot) {
+        BitmapRegionDecoder decoder;
+        try {
+            if (snapshot.isPacked(ImageDownloader.BODY_INDEX)) {
+                // The descriptor of a packed value would expose the rest of its segment.
+                byte[] data = snapshot.getBytes(ImageDownloader.BODY_INDEX);
+                decoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+            } else {
+                decoder = BitmapRegionDecoder.newInstance(
+                        snapshot.getInputStream(ImageDownloader.BODY_INDEX).getFD(), false);
+            }
+        } catch (IOException e) {
+            snapshot.close();
+            fail(e);
+            return;
+        }
+        Rect region;
+        float scale;
+        synchronized (this) {
+            if (closed) {
+                decoder.recycle();
+                snapshot.close();
+                return;
+            }
+            this.snapshot = snapshot;
+            this.decoder = decoder;
+            this.width = decoder.getWidth();
+            this.height = decoder.getHeight();
+            region = visibleRegion;
+            scale = visibleScale;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isClosed()) {
+                    listener.onReady(TiledImage.this);
+                }
+            }
+        });
+        if (region != null) {
+            setVisibleRegion(region, scale);
+        }
+    }
+
+    void fail(final Exception e) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isClosed()) {
+                    listener.onError(TiledImage.this, e);
+                }
+            }
+        });
+    }
+
+    private void release() {
+        if (decoder != null) {
+            decoder.recycle();
+            decoder = null;
+        }
+        if (snapshot != null) {
+            snapshot.close();
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Returns the largest power of two that is at most the number of image
+     * pixels per screen pixel.
+     */
+    static int sampleSizeFor(float scale) {
+        int sampleSize = 1;
+        while (scale > 0 && sampleSize * 2 * scale <= 1) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Returns the regions of the tiles overlapping the visible region at the
+     * current sample size, clipped to the image.
+     */
+    private List<Rect> visibleTiles() {
+        List<Rect> result = new ArrayList<Rect>();
+        if (visibleRegion == null) {
+            return result;
+        }
+        int side = TILE_SIZE * sampleSize;
+        int left = Math.max(0, visibleRegion.left) / side;
+        int top = Math.max(0, visibleRegion.top) / side;
+        int right = Math.min(width, visibleRegion.right);
+        int bottom = Math.min(height, visibleRegion.bottom);
+        for (int row = top; row * side < bottom; row++) {
+            for (int col = left; col * side < right; col++) {
+                result.add(new Rect(col * side, row * side,
+                        Math.min(width, (col + 1) * side), Math.min(height, (row + 1) * side)));
+            }
+        }
+        return result;
+    }
+
+    private static String tileKey(Rect region, int sampleSize) {
+        return sampleSize + ":" + region.left + ":" + region.top;
+    }
+
+    private final class TileTask implements LoadScheduler.Task {
+        final String key;
+        final Rect region;
+        final int sampleSize;
+        private LoadScheduler.Job job;
+        private boolean cancelled;
+
+        TileTask(String key, Rect region, int sampleSize) {
+            this.key = key;
+            this.region = region;
+            this.sampleSize = sampleSize;
+        }
+
+        void submit() {
+            LoadScheduler.Job job = scheduler.submit(this, LoadScheduler.Priority.VISIBLE);
+            synchronized (TiledImage.this) {
+                this.job = job;
+                if (!cancelled) {
+                    return;
+                }
+            }
+            job.cancel();
+        }
+
+        /**
+         * Removes the task from its scheduler if it hasn't started. A decode
+         * that has started can't be stopped and is kept in the tile cache.
+         */
+        void cancel() {
+            LoadScheduler.Job toCancel;
+            synchronized (TiledImage.this) {
+                cancelled = true;
+                toCancel = job;
+            }
+            if (toCancel != null) {
+                toCancel.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            BitmapRegionDecoder decoder;
+            synchronized (TiledImage.this) {
+                if (cancelled || closed || pending.get(key) != this) {
+                    return;
+                }
+                decoder = TiledImage.this.decoder;
+                activeDecodes++;
+            }
+            Bitmap bitmap = null;
+            try {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sampleSize;
+                bitmap = decoder.decodeRegion(region, options);
+            } finally {
+                synchronized (TiledImage.this) {
+                    activeDecodes--;
+                    if (pending.get(key) == this) {
+                        pending.remove(key);
+                    }
+                    if (closed) {
+                        if (activeDecodes == 0) {
+                            release();
+                        }
+                        bitmap = null;
+                    } else if (bitmap != null) {
+                        tiles.put(key, bitmap);
+                    }
+                }
+            }
+            if (bitmap == null) {
+                return;
+            }
+            final Tile tile = new Tile(region, sampleSize, bitmap);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isClosed()) {
+                        listener.onTileLoaded(TiledImage.this, tile);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onDropped() {
+            synchronized (TiledImage.this) {
+                if (pending.get(key) == this) {
+                    pending.remove(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.jzy.aimage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Revalidation of cached images against a local server: the headers stored
+ * with a {@code 200}, the expiry computed from them, and the handling of a
+ * {@code 304} for an entry kept past its expiry by the stale retention.
+ */
+public class ImageDownloaderTest {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final String KEY = "image";
+    private static final String LAST_MODIFIED = "Sun, 06 Nov 1994 08:49:37 GMT";
+
+    @Rule
+    public final MockWebServer server = new MockWebServer();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private LruDiskCache cache;
+    private ImageDownloader downloader;
+
+    @Before
+    public void setUp() throws IOException {
+        cache = LruDiskCache.open(folder.newFolder(), 1, ImageDownloader.VALUE_COUNT, 1024 * 1024);
+        cache.setStaleRetention(DAY);
+        downloader = new ImageDownloader(new OkHttpClient());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.close();
+    }
+
+    @Test
+    public void okStoresValidatorsAndMaxAgeExpiry() throws Exception {
+        server.enqueue(new MockResponse()
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Last-Modified", LAST_MODIFIED)
+                .setHeader("Cache-Control", "max-age=3600")
+                .setBody("body v1"));
+
+        long before = System.currentTimeMillis();
+        DownloadStats stats = download();
+        long after = System.currentTimeMillis();
+
+        assertFalse(stats.isNotModified());
+        assertEquals("body v1", getBody());
+        String headers = getHeaders();
+        assertTrue(headers, headers.contains("ETag: \"v1\""));
+        assertTrue(headers, headers.contains("Last-Modified: " + LAST_MODIFIED));
+        assertExpiryBetween(before + HOUR, after + HOUR);
+        assertNull(server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void okWithExpiresAndNoMaxAge() throws Exception {
+        long now = System.currentTimeMillis();
+        server.enqueue(new MockResponse()
+                .setHeader("Date", httpDate(now))
+                .setHeader("Expires", httpDate(now + 2 * HOUR))
+                .setBody("body v1"));
+
+        download();
+
+        // Dates only carry whole seconds.
+        long after = System.currentTimeMillis();
+        assertExpiryBetween(now + 2 * HOUR - 1000, after + 2 * HOUR + 1000);
+    }
+
+    @Test
+    public void notModifiedRefreshesExpiryWithoutRewritingBody() throws Exception {
+        server.enqueue(new MockResponse()
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Last-Modified", LAST_MODIFIED)
+                .setHeader("Cache-Control", "max-age=60")
+                .setBody("body v1"));
+        server.enqueue(new MockResponse()
+                .setResponseCode(304)
+                .setHeader("Cache-Control", "max-age=3600"));
+        download();
+        server.takeRequest();
+        expire();
+        long bytesWritten = cache.getMetrics().getBytesWritten();
+
+        long before = System.currentTimeMillis();
+        DownloadStats stats = download();
+        long after = System.currentTimeMillis();
+
+        RecordedRequest revalidation = server.takeRequest();
+        assertEquals("\"v1\"", revalidation.getHeader("If-None-Match"));
+        assertEquals(LAST_MODIFIED, revalidation.getHeader("If-Modified-Since"));
+        assertTrue(stats.isNotModified());
+        assertEquals(0, stats.getBytes());
+        assertEquals("body v1", getBody());
+        assertTrue(getHeaders().contains("Cache-Control: max-age=3600"));
+        assertExpiryBetween(before + HOUR, after + HOUR);
+        // Only the headers value was written again.
+        LruDiskCache.Snapshot snapshot = cache.get(KEY);
+        long headersLength = snapshot.getLength(ImageDownloader.HEADERS_INDEX);
+        snapshot.close();
+        assertEquals(bytesWritten + headersLength, cache.getMetrics().getBytesWritten());
+    }
+
+    @Test
+    public void changedImageReplacesBody() throws Exception {
+        server.enqueue(new MockResponse()
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Cache-Control", "max-age=60")
+                .setBody("body v1"));
+        server.enqueue(new MockResponse()
+                .setHeader("ETag", "\"v2\"")
+                .setHeader("Cache-Control", "max-age=60")
+                .setBody("body v2"));
+        download();
+        expire();
+
+        DownloadStats stats = download();
+
+        assertFalse(stats.isNotModified());
+        assertEquals("body v2", getBody());
+        assertTrue(getHeaders().contains("ETag: \"v2\""));
+    }
+
+    @Test
+    public void expiredEntryIsServedAfterRevalidationWithinStaleRetention() throws Exception {
+        server.enqueue(new MockResponse()
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Cache-Control", "max-age=60")
+                .setBody("body v1"));
+        server.enqueue(new MockResponse().setResponseCode(304));
+        download();
+        expire();
+
+        // Expired: a miss, but the body and validators are kept for revalidation.
+        assertNull(cache.get(KEY));
+        assertTrue(cache.getExpiryTimestamp(KEY) > 0);
+        download();
+
+        assertEquals("body v1", getBody());
+    }
+
+    @Test
+    public void expiredEntryIsDroppedAfterStaleRetention() throws Exception {
+        cache.setStaleRetention(0);
+        server.enqueue(new MockResponse()
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Cache-Control", "max-age=60")
+                .setBody("body v1"));
+        server.enqueue(new MockResponse().setBody("body v1"));
+        download();
+        server.takeRequest();
+        expire();
+        assertNull(cache.get(KEY));
+
+        // The miss schedules the sweeper, which removes the entry at once.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getExpiryTimestamp(KEY) != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, cache.getExpiryTimestamp(KEY));
+        download();
+
+        assertNull(server.takeRequest().getHeader("If-None-Match"));
+        assertEquals("body v1", getBody());
+    }
+
+    private DownloadStats download() throws IOException {
+        LruDiskCache.Editor editor = cache.edit(KEY);
+        assertNotNull(editor);
+        try {
+            DownloadStats stats = downloader.newDownload(server.url("/image.jpg").toString(), editor).execute();
+            editor.commit();
+            return stats;
+        } finally {
+            editor.abortUnlessCommitted();
+        }
+    }
+
+    /**
+     * Moves the entry's expiry into the past, as if its freshness had run out.
+     */
+    private void expire() throws IOException {
+        LruDiskCache.Editor editor = cache.edit(KEY);
+        editor.setEntryExpiryTimestamp(System.currentTimeMillis() - 1);
+        editor.commit();
+    }
+
+    private String getBody() throws IOException {
+        LruDiskCache.Snapshot snapshot = cache.get(KEY);
+        assertNotNull(snapshot);
+        try {
+            return snapshot.getString(ImageDownloader.BODY_INDEX);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private String getHeaders() throws IOException {
+        LruDiskCache.Snapshot snapshot = cache.get(KEY);
+        assertNotNull(snapshot);
+        try {
+            return snapshot.getString(ImageDownloader.HEADERS_INDEX);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private void assertExpiryBetween(long min, long max) throws IOException {
+        long expiry = cache.getExpiryTimestamp(KEY);
+        assertTrue(expiry + " < " + min, expiry >= min);
+        assertTrue(expiry + " > " + max, expiry <= max);
+    }
+
+    private static String httpDate(long timestamp) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(timestamp));
+    }
+}
@@ -0,0 +1,103 @@
+package com.jzy.aimage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Creates, fills and deletes the caches the benchmarks run against. Each
+ * cache lives in a fresh directory under {@code java.io.tmpdir} and has one
+ * value per entry.
+ */
+final class BenchmarkCaches {
+    static final int APP_VERSION = 1;
+
+    private BenchmarkCaches() {
+    }
+
+    static File createDirectory(String name) throws IOException {
+        File directory = File.createTempFile("aimage-" + name + "-", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("failed to create " + directory);
+        }
+        return directory;
+    }
+
+    static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Returns the url of the i-th image, shaped like the keys BitmapHelper
+     * stores.
+     */
+    static String key(int i) {
+        return "http://images.example.com/photos/" + i + ".jpg";
+    }
+
+    static byte[] value(int size) {
+        byte[] value = new byte[size];
+        new Random(size).nextBytes(value);
+        return value;
+    }
+
+    /**
+     * Returns a budget that holds {@code entries} values of
+     * {@code valueSize} bytes without evicting any of them.
+     */
+    static long maxSizeFor(int entries, int valueSize) {
+        return 2L * entries * valueSize;
+    }
+
+    /**
+     * Opens a cache in {@code directory} sized by {@link #maxSizeFor} and
+     * writes {@code entries} values into it. Values of at most
+     * {@code packThreshold} bytes are packed, see
+     * {@link LruDiskCache#setPackThreshold}.
+     */
+    static LruDiskCache populate(File directory, int entries, int valueSize, int packThreshold)
+            throws IOException {
+        LruDiskCache cache = LruDiskCache.open(directory, APP_VERSION, 1, maxSizeFor(entries, valueSize));
+        cache.setPackThreshold(packThreshold);
+        byte[] value = value(valueSize);
+        for (int i = 0; i < entries; i++) {
+            write(cache, cache.newKey(key(i)), value);
+        }
+        cache.flush();
+        return cache;
+    }
+
+    /**
+     * Closes {@code cache} and lets its background thread exit once idle,
+     * rather than linger into the next benchmark.
+     */
+    static void close(LruDiskCache cache) throws IOException {
+        cache.close();
+        cache.executorService.shutdown();
+    }
+
+    static void write(LruDiskCache cache, CacheKey key, byte[] value) throws IOException {
+        LruDiskCache.Editor editor = cache.edit(key);
+        if (editor == null) {
+            throw new IOException("entry is being edited: " + key.getKey());
+        }
+        OutputStream out = editor.newOutputStream(0);
+        try {
+            out.write(value);
+        } finally {
+            out.close();
+        }
+        editor.commit();
+    }
+}
@@ -0,0 +1,73 @@
+package com.jzy.aimage;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the disk cache benchmarks and writes all their results into one JMH
+ * JSON file, so that the files saved for two versions can be compared with
+ * any JMH result viewer. {@link LruDiskCacheGetBenchmark} runs once per
+ * thread count in {@link #GET_THREADS}, the others on a single thread.
+ * <p/>
+ * <p>Usage: {@code BenchmarkMain <result file> [class name regex]}
+ */
+public final class BenchmarkMain {
+    private static final int[] GET_THREADS = {1, 2, 4, 8, 16};
+    private static final int[] SINGLE_THREAD = {1};
+
+    private static final Class<?>[] BENCHMARKS = {
+            LruDiskCacheGetBenchmark.class,
+            LruDiskCacheEditBenchmark.class,
+            LruDiskCacheOpenBenchmark.class,
+            LruDiskCacheRebuildJournalBenchmark.class,
+            LruDiskCacheEvictionBenchmark.class,
+    };
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: BenchmarkMain <result file> [class name regex]");
+            System.exit(2);
+        }
+        File resultFile = new File(args[0]);
+        Pattern filter = Pattern.compile(args.length > 1 ? args[1] : "");
+
+        List<RunResult> results = new ArrayList<RunResult>();
+        for (Class<?> benchmark : BENCHMARKS) {
+            if (!filter.matcher(benchmark.getSimpleName()).find()) {
+                continue;
+            }
+            int[] threadCounts = benchmark == LruDiskCacheGetBenchmark.class ? GET_THREADS : SINGLE_THREAD;
+            for (int threads : threadCounts) {
+                Options options = new OptionsBuilder()
+                        .include("^" + Pattern.quote(benchmark.getName()) + "\\.")
+                        .threads(threads)
+                        .build();
+                results.addAll(new Runner(options).run());
+            }
+        }
+        if (results.isEmpty()) {
+            System.err.println("No benchmark matches " + filter.pattern());
+            System.exit(1);
+        }
+
+        File parent = resultFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IllegalStateException("failed to create " + parent);
+        }
+        ResultFormatFactory.getInstance(ResultFormatType.JSON, resultFile.getPath()).writeOut(results);
+        System.out.println("Results saved to " + resultFile);
+    }
+}
@@ -0,0 +1,71 @@
+package com.jzy.aimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency distribution of writing one value with {@link LruDiskCache#edit}
+ * and committing it. The edits cycle through a fixed set of keys that fits in
+ * the budget, so most of them replace a value and none evicts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LruDiskCacheEditBenchmark {
+    private static final int KEYS = 1000;
+
+    @Param({"1024", "16384", "262144"})
+    public int valueSize;
+
+    @Param({"0", "65536"})
+    public int packThreshold;
+
+    private File directory;
+    private LruDiskCache cache;
+    private CacheKey[] keys;
+    private byte[] value;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkCaches.createDirectory("edit");
+        cache = LruDiskCache.open(directory, BenchmarkCaches.APP_VERSION, 1,
+                BenchmarkCaches.maxSizeFor(KEYS, valueSize));
+        cache.setPackThreshold(packThreshold);
+        keys = new CacheKey[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = cache.newKey(BenchmarkCaches.key(i));
+        }
+        value = BenchmarkCaches.value(valueSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkCaches.close(cache);
+        BenchmarkCaches.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void editAndCommit() throws IOException {
+        BenchmarkCaches.write(cache, keys[next], value);
+        next = (next + 1) % KEYS;
+    }
+}
@@ -0,0 +1,76 @@
+package com.jzy.aimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of writing new entries into a full cache, so that every commit
+ * pushes the cache over its budget and eviction has to keep up with the
+ * writes. The iterations are long enough to include the deferred file
+ * deletes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LruDiskCacheEvictionBenchmark {
+    /**
+     * The number of values the budget holds.
+     */
+    private static final int CAPACITY = 1000;
+
+    @Param({"16384"})
+    public int valueSize;
+
+    @Param({"LRU", "TINY_LFU"})
+    public LruDiskCache.EvictionPolicy evictionPolicy;
+
+    private File directory;
+    private LruDiskCache cache;
+    private byte[] value;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkCaches.createDirectory("eviction");
+        cache = LruDiskCache.open(directory, BenchmarkCaches.APP_VERSION, 1, (long) CAPACITY * valueSize);
+        cache.setEvictionPolicy(evictionPolicy);
+        value = BenchmarkCaches.value(valueSize);
+        while (next < CAPACITY) {
+            writeNext();
+        }
+        cache.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkCaches.close(cache);
+        BenchmarkCaches.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void writeOverBudget() throws IOException {
+        writeNext();
+    }
+
+    private void writeNext() throws IOException {
+        BenchmarkCaches.write(cache, cache.newKey(BenchmarkCaches.key(next++)), value);
+    }
+}
@@ -0,0 +1,82 @@
+package com.jzy.aimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link LruDiskCache#get} for keys picked uniformly from the
+ * cache, and for keys it doesn't hold. All threads share one cache;
+ * {@link BenchmarkMain} runs this with 1 to 16 threads to show lock
+ * contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LruDiskCacheGetBenchmark {
+    @Param({"10000"})
+    public int entries;
+
+    @Param({"4096"})
+    public int valueSize;
+
+    @Param({"EVERY", "BUFFERED"})
+    public LruDiskCache.AccessRecording accessRecording;
+
+    private File directory;
+    private LruDiskCache cache;
+    private CacheKey[] hits;
+    private CacheKey[] misses;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkCaches.createDirectory("get");
+        cache = BenchmarkCaches.populate(directory, entries, valueSize, 0);
+        cache.setAccessRecording(accessRecording);
+        hits = new CacheKey[entries];
+        misses = new CacheKey[entries];
+        for (int i = 0; i < entries; i++) {
+            hits[i] = cache.newKey(BenchmarkCaches.key(i));
+            misses[i] = cache.newKey(BenchmarkCaches.key(entries + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkCaches.close(cache);
+        BenchmarkCaches.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public long hit() throws IOException {
+        LruDiskCache.Snapshot snapshot = cache.get(hits[ThreadLocalRandom.current().nextInt(entries)]);
+        try {
+            return snapshot.getLength(0);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Benchmark
+    public boolean miss() throws IOException {
+        return cache.get(misses[ThreadLocalRandom.current().nextInt(entries)]) == null;
+    }
+}
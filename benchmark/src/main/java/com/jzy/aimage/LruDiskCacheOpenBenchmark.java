@@ -0,0 +1,62 @@
+package com.jzy.aimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of {@link LruDiskCache#open} on an existing cache, which loads the
+ * index checkpoint and replays the journal written since. The values are
+ * small and packed, so that the cache directory stays manageable at a
+ * million entries; their size doesn't affect opening.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LruDiskCacheOpenBenchmark {
+    static final int VALUE_SIZE = 64;
+
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    private File directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkCaches.createDirectory("open");
+        BenchmarkCaches.close(BenchmarkCaches.populate(directory, entries, VALUE_SIZE, VALUE_SIZE));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkCaches.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public long open() throws IOException {
+        LruDiskCache cache = LruDiskCache.open(directory, BenchmarkCaches.APP_VERSION, 1,
+                BenchmarkCaches.maxSizeFor(entries, VALUE_SIZE));
+        try {
+            return cache.size();
+        } finally {
+            BenchmarkCaches.close(cache);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.jzy.aimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link LruDiskCache#rebuildJournal}, which writes a checkpoint of
+ * the whole index while holding the cache lock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LruDiskCacheRebuildJournalBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    private File directory;
+    private LruDiskCache cache;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkCaches.createDirectory("rebuild");
+        cache = BenchmarkCaches.populate(directory, entries, LruDiskCacheOpenBenchmark.VALUE_SIZE,
+                LruDiskCacheOpenBenchmark.VALUE_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkCaches.close(cache);
+        BenchmarkCaches.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void rebuildJournal() throws IOException {
+        cache.rebuildJournal();
+    }
+}